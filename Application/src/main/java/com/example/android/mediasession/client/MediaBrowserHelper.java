@@ -18,22 +18,33 @@ package com.example.android.mediasession.client;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaControllerCompat.Callback;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 
 import com.example.android.mediasession.service.MusicService;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class for a MediaBrowser that handles connecting, disconnecting,
@@ -46,7 +57,8 @@ public class MediaBrowserHelper {
     private final Context mContext;
     private final Class<? extends MediaBrowserServiceCompat> mMediaBrowserServiceClass;
 
-    private final List<Callback> mCallbackList = new ArrayList<>();
+    // Copy-on-write, so callbacks can (un)register themselves while being notified.
+    private final List<Callback> mCallbackList = new CopyOnWriteArrayList<>();
 
     private final MediaBrowserConnectionCallback mMediaBrowserConnectionCallback;
     private final MediaControllerCallback mMediaControllerCallback;
@@ -54,12 +66,51 @@ public class MediaBrowserHelper {
 
     private MediaBrowserCompat mMediaBrowser;
 
+    // Children of each loaded node, kept across reconnects so that they can be shown right
+    // away. An entry is replaced whenever the service reloads the node (after
+    // notifyChildrenChanged()), and removed when the node is unsubscribed or fails to load.
+    private final Map<String, List<MediaBrowserCompat.MediaItem>> mChildrenCache =
+            new HashMap<>();
+    // Nodes subscribed by the client, and nodes subscribed only to prefetch them.
+    private final Set<String> mSubscriptions = new LinkedHashSet<>();
+    private final Set<String> mPrefetchSubscriptions = new HashSet<>();
+    private int mMaxPrefetchCount;
+
+    // When enabled, metadata and playback state updates are delivered at most once per
+    // display frame, with only the latest value of each delivered.
+    private boolean mFrameSynchronizedDispatch;
+    private boolean mFrameCallbackPosted;
+    private boolean mHasPendingMetadata;
+    private MediaMetadataCompat mPendingMetadata;
+    private boolean mHasPendingPlaybackState;
+    private PlaybackStateCompat mPendingPlaybackState;
+    private final Choreographer.FrameCallback mDispatchFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mFrameCallbackPosted = false;
+                    dispatchPendingUpdates();
+                }
+            };
+
     @Nullable
     private MediaControllerCompat mMediaController;
 
+    // When retained, onStop() keeps the connection for a grace period, so that a quick
+    // restart (rotation, app switch) reuses it instead of binding to the service again.
+    private final Handler mHandler = new Handler();
+    private long mRetainGracePeriodMs;
+    private final Runnable mDisconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            disconnect();
+        }
+    };
+
     public MediaBrowserHelper(Context context,
                               Class<? extends MediaBrowserServiceCompat> serviceClass) {
-        mContext = context;
+        // The application context, as the helper may outlive an Activity when retained.
+        mContext = context.getApplicationContext();
         mMediaBrowserServiceClass = serviceClass;
 
         mMediaBrowserConnectionCallback = new MediaBrowserConnectionCallback();
@@ -67,7 +118,28 @@ public class MediaBrowserHelper {
         mMediaBrowserSubscriptionCallback = new MediaBrowserSubscriptionCallback();
     }
 
+    /**
+     * Keeps the connection alive for {@code gracePeriodMs} after {@link #onStop()}. If
+     * {@link #onStart()} is called within that time, the existing browser and controller are
+     * reused. To keep the connection across configuration changes, retain the helper itself,
+     * e.g. through {@code onRetainCustomNonConfigurationInstance()}.
+     *
+     * @param gracePeriodMs Grace period in milliseconds, or 0 to disconnect in onStop().
+     */
+    public void setRetainConnection(long gracePeriodMs) {
+        mRetainGracePeriodMs = gracePeriodMs;
+    }
+
     public void onStart() {
+        mHandler.removeCallbacks(mDisconnectRunnable);
+        if (mMediaController != null) {
+            // Still connected: let the (possibly new) client bind to the controller again.
+            // Registered callbacks already received the current state; loaded children are
+            // available from getCachedChildren() and are not delivered again.
+            onConnected(mMediaController);
+            Log.d(TAG, "onStart: Reusing retained MediaBrowser connection");
+            return;
+        }
         if (mMediaBrowser == null) {
             mMediaBrowser =
                     new MediaBrowserCompat(
@@ -81,16 +153,162 @@ public class MediaBrowserHelper {
     }
 
     public void onStop() {
+        if (mRetainGracePeriodMs > 0) {
+            mHandler.removeCallbacks(mDisconnectRunnable);
+            mHandler.postDelayed(mDisconnectRunnable, mRetainGracePeriodMs);
+            Log.d(TAG, "onStop: Retaining MediaBrowser for " + mRetainGracePeriodMs + "ms");
+            return;
+        }
+        disconnect();
+    }
+
+    /**
+     * Disconnects right away, regardless of the grace period. Call when the client is
+     * finished for good.
+     */
+    public void release() {
+        mHandler.removeCallbacks(mDisconnectRunnable);
+        disconnect();
+    }
+
+    private void disconnect() {
         if (mMediaController != null) {
             mMediaController.unregisterCallback(mMediaControllerCallback);
             mMediaController = null;
         }
-        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
+        if (mMediaBrowser != null) {
             mMediaBrowser.disconnect();
             mMediaBrowser = null;
         }
         resetState();
-        Log.d(TAG, "onStop: Releasing MediaController, Disconnecting from MediaBrowser");
+        Log.d(TAG, "disconnect: Releasing MediaController, Disconnecting from MediaBrowser");
+    }
+
+    /**
+     * Drops a connection that the service ended, so that the next {@link #onStart()} binds
+     * again instead of reusing a dead controller.
+     */
+    private void onConnectionLost() {
+        mHandler.removeCallbacks(mDisconnectRunnable);
+        disconnect();
+        onDisconnected();
+    }
+
+    /**
+     * Subscribes to the children of {@code parentId}. Cached children are delivered to
+     * {@link #onChildrenLoaded(String, List)} immediately, and again once the service returns
+     * a different list. The root node is subscribed automatically.
+     */
+    public void subscribe(@NonNull String parentId) {
+        if (!mSubscriptions.add(parentId)) {
+            return;
+        }
+
+        final List<MediaBrowserCompat.MediaItem> cached = mChildrenCache.get(parentId);
+        if (cached != null) {
+            onChildrenLoaded(parentId, cached);
+        }
+        if (mPrefetchSubscriptions.remove(parentId)) {
+            // Already subscribed to prefetch it.
+            return;
+        }
+        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
+            mMediaBrowser.subscribe(parentId, mMediaBrowserSubscriptionCallback);
+        }
+    }
+
+    public void unsubscribe(@NonNull String parentId) {
+        if (mSubscriptions.remove(parentId) || mPrefetchSubscriptions.remove(parentId)) {
+            mChildrenCache.remove(parentId);
+            if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
+                mMediaBrowser.unsubscribe(parentId, mMediaBrowserSubscriptionCallback);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached children of {@code parentId}, or null if they haven't been loaded.
+     */
+    @Nullable
+    public List<MediaBrowserCompat.MediaItem> getCachedChildren(@NonNull String parentId) {
+        return mChildrenCache.get(parentId);
+    }
+
+    /**
+     * Sets how many browsable children of each loaded node are prefetched into the cache, so
+     * that navigating into them doesn't wait for the service. 0 disables prefetching.
+     */
+    public void setMaxPrefetchCount(int maxPrefetchCount) {
+        mMaxPrefetchCount = maxPrefetchCount;
+    }
+
+    private void prefetchChildren(@NonNull List<MediaBrowserCompat.MediaItem> children) {
+        int prefetched = 0;
+        for (MediaBrowserCompat.MediaItem item : children) {
+            if (prefetched >= mMaxPrefetchCount) {
+                break;
+            }
+            final String mediaId = item.getMediaId();
+            if (!item.isBrowsable() || mediaId == null
+                    || mSubscriptions.contains(mediaId)
+                    || mPrefetchSubscriptions.contains(mediaId)) {
+                continue;
+            }
+            mPrefetchSubscriptions.add(mediaId);
+            mMediaBrowser.subscribe(mediaId, mMediaBrowserSubscriptionCallback);
+            prefetched++;
+        }
+    }
+
+    /**
+     * Returns whether two lists of children would look the same to the app: same items, in the
+     * same order, with the same descriptions.
+     */
+    private static boolean hasSameItems(List<MediaBrowserCompat.MediaItem> a,
+                                        List<MediaBrowserCompat.MediaItem> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).getFlags() != b.get(i).getFlags()
+                    || !isSameDescription(a.get(i).getDescription(), b.get(i).getDescription())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSameDescription(MediaDescriptionCompat a, MediaDescriptionCompat b) {
+        return TextUtils.equals(a.getMediaId(), b.getMediaId())
+                && TextUtils.equals(a.getTitle(), b.getTitle())
+                && TextUtils.equals(a.getSubtitle(), b.getSubtitle())
+                && TextUtils.equals(a.getDescription(), b.getDescription())
+                && objectEquals(a.getIconUri(), b.getIconUri())
+                && objectEquals(a.getMediaUri(), b.getMediaUri())
+                && isSameBundle(a.getExtras(), b.getExtras());
+    }
+
+    /**
+     * Compares the values of two bundles with {@link Object#equals(Object)}, which is enough
+     * for the strings and numbers that descriptions carry in their extras.
+     */
+    private static boolean isSameBundle(@Nullable Bundle a, @Nullable Bundle b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (String key : a.keySet()) {
+            if (!objectEquals(a.get(key), b.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean objectEquals(@Nullable Object a, @Nullable Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -120,6 +338,14 @@ public class MediaBrowserHelper {
     protected void onDisconnected() {
     }
 
+    /**
+     * Returns whether the helper is connected, i.e. {@link #getMediaController()} is
+     * available.
+     */
+    protected final boolean isConnected() {
+        return mMediaController != null;
+    }
+
     @NonNull
     protected final MediaControllerCompat getMediaController() {
         if (mMediaController == null) {
@@ -133,15 +359,32 @@ public class MediaBrowserHelper {
      * any connections to the {@link MusicService} happens via the {@link MediaSessionCompat}.
      */
     private void resetState() {
-        performOnAllCallbacks(new CallbackCommand() {
-            @Override
-            public void perform(@NonNull Callback callback) {
-                callback.onPlaybackStateChanged(null);
-            }
-        });
+        mHasPendingMetadata = false;
+        mPendingMetadata = null;
+        mHasPendingPlaybackState = false;
+        mPendingPlaybackState = null;
+        dispatchPlaybackStateChanged(null);
         Log.d(TAG, "resetState: ");
     }
 
+    /**
+     * Enables or disables frame-synchronised dispatch. When enabled, bursts of metadata and
+     * playback state changes are conflated and delivered to the registered callbacks at most
+     * once per display frame, so listeners do a bounded amount of work per frame.
+     * <p>
+     * Must be called on the main thread.
+     */
+    public void setFrameSynchronizedDispatch(boolean enabled) {
+        mFrameSynchronizedDispatch = enabled;
+        if (!enabled) {
+            if (mFrameCallbackPosted) {
+                Choreographer.getInstance().removeFrameCallback(mDispatchFrameCallback);
+                mFrameCallbackPosted = false;
+            }
+            dispatchPendingUpdates();
+        }
+    }
+
     public MediaControllerCompat.TransportControls getTransportControls() {
         if (mMediaController == null) {
             Log.d(TAG, "getTransportControls: MediaController is null!");
@@ -150,6 +393,10 @@ public class MediaBrowserHelper {
         return mMediaController.getTransportControls();
     }
 
+    public void unregisterCallback(Callback callback) {
+        mCallbackList.remove(callback);
+    }
+
     public void registerCallback(Callback callback) {
         if (callback != null) {
             mCallbackList.add(callback);
@@ -169,19 +416,38 @@ public class MediaBrowserHelper {
         }
     }
 
-    private void performOnAllCallbacks(@NonNull CallbackCommand command) {
+    private void dispatchMetadataChanged(MediaMetadataCompat metadata) {
         for (Callback callback : mCallbackList) {
-            if (callback != null) {
-                command.perform(callback);
-            }
+            callback.onMetadataChanged(metadata);
         }
     }
 
-    /**
-     * Helper for more easily performing operations on all listening clients.
-     */
-    private interface CallbackCommand {
-        void perform(@NonNull Callback callback);
+    private void dispatchPlaybackStateChanged(PlaybackStateCompat state) {
+        for (Callback callback : mCallbackList) {
+            callback.onPlaybackStateChanged(state);
+        }
+    }
+
+    private void dispatchPendingUpdates() {
+        if (mHasPendingMetadata) {
+            final MediaMetadataCompat metadata = mPendingMetadata;
+            mHasPendingMetadata = false;
+            mPendingMetadata = null;
+            dispatchMetadataChanged(metadata);
+        }
+        if (mHasPendingPlaybackState) {
+            final PlaybackStateCompat state = mPendingPlaybackState;
+            mHasPendingPlaybackState = false;
+            mPendingPlaybackState = null;
+            dispatchPlaybackStateChanged(state);
+        }
+    }
+
+    private void scheduleDispatch() {
+        if (!mFrameCallbackPosted) {
+            mFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(mDispatchFrameCallback);
+        }
     }
 
     // Receives callbacks from the MediaBrowser when it has successfully connected to the
@@ -208,7 +474,28 @@ public class MediaBrowserHelper {
                 throw new RuntimeException(e);
             }
 
-            mMediaBrowser.subscribe(mMediaBrowser.getRoot(), mMediaBrowserSubscriptionCallback);
+            // Show cached children right away; the subscriptions refresh them if needed.
+            mPrefetchSubscriptions.clear();
+            mSubscriptions.add(mMediaBrowser.getRoot());
+            for (String parentId : mSubscriptions) {
+                final List<MediaBrowserCompat.MediaItem> cached = mChildrenCache.get(parentId);
+                if (cached != null) {
+                    MediaBrowserHelper.this.onChildrenLoaded(parentId, cached);
+                }
+                mMediaBrowser.subscribe(parentId, mMediaBrowserSubscriptionCallback);
+            }
+        }
+
+        // The service was killed or crashed.
+        @Override
+        public void onConnectionSuspended() {
+            onConnectionLost();
+        }
+
+        // The service refused the connection, or couldn't be bound.
+        @Override
+        public void onConnectionFailed() {
+            onConnectionLost();
         }
     }
 
@@ -219,7 +506,25 @@ public class MediaBrowserHelper {
         @Override
         public void onChildrenLoaded(@NonNull String parentId,
                                      @NonNull List<MediaBrowserCompat.MediaItem> children) {
-            MediaBrowserHelper.this.onChildrenLoaded(parentId, children);
+            final List<MediaBrowserCompat.MediaItem> cached = mChildrenCache.get(parentId);
+            mChildrenCache.put(parentId, new ArrayList<>(children));
+
+            // Prefetched nodes are only cached, and unchanged nodes were already delivered.
+            // Prefetching only goes one level below the nodes the app subscribed to.
+            if (!mSubscriptions.contains(parentId)) {
+                return;
+            }
+            if (mMaxPrefetchCount > 0) {
+                prefetchChildren(children);
+            }
+            if (cached == null || !hasSameItems(cached, children)) {
+                MediaBrowserHelper.this.onChildrenLoaded(parentId, children);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull String parentId) {
+            mChildrenCache.remove(parentId);
         }
     }
 
@@ -229,32 +534,31 @@ public class MediaBrowserHelper {
 
         @Override
         public void onMetadataChanged(final MediaMetadataCompat metadata) {
-            performOnAllCallbacks(new CallbackCommand() {
-                @Override
-                public void perform(@NonNull Callback callback) {
-                    callback.onMetadataChanged(metadata);
-                }
-            });
+            if (mFrameSynchronizedDispatch) {
+                mPendingMetadata = metadata;
+                mHasPendingMetadata = true;
+                scheduleDispatch();
+            } else {
+                dispatchMetadataChanged(metadata);
+            }
         }
 
         @Override
         public void onPlaybackStateChanged(@Nullable final PlaybackStateCompat state) {
-            performOnAllCallbacks(new CallbackCommand() {
-                @Override
-                public void perform(@NonNull Callback callback) {
-                    callback.onPlaybackStateChanged(state);
-                }
-            });
+            if (mFrameSynchronizedDispatch) {
+                mPendingPlaybackState = state;
+                mHasPendingPlaybackState = true;
+                scheduleDispatch();
+            } else {
+                dispatchPlaybackStateChanged(state);
+            }
         }
 
         // This might happen if the MusicService is killed while the Activity is in the
         // foreground and onStart() has been called (but not onStop()).
         @Override
         public void onSessionDestroyed() {
-            resetState();
-            onPlaybackStateChanged(null);
-
-            MediaBrowserHelper.this.onDisconnected();
+            onConnectionLost();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.debug;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Guards the main thread of the process against blocking work, for debug builds and test
+ * harnesses.
+ * <p>
+ * {@link #install()} enables a StrictMode policy that logs disk and network access on the
+ * main thread, and watches every message dispatched by the main looper. When one runs longer
+ * than the threshold, the main thread's stack is captured while it is still blocked, and a
+ * {@link Violation} is recorded with that call site. Harnesses check the violations with
+ * {@link #assertNoViolations()} after a run.
+ */
+public final class MainThreadGuard {
+
+    private static final String TAG = MainThreadGuard.class.getSimpleName();
+
+    public static final long DEFAULT_THRESHOLD_MS = 100;
+
+    // Number of violations kept; later ones are only counted.
+    private static final int MAX_VIOLATIONS = 50;
+
+    /**
+     * A message of the main looper that ran longer than the threshold.
+     */
+    public static class Violation {
+        public final String mMessage;
+        public final long mDurationMs;
+        // Stack of the main thread once the threshold had passed, or empty if the message
+        // finished before it could be captured.
+        public final StackTraceElement[] mStackTrace;
+
+        Violation(String message, long durationMs, StackTraceElement[] stackTrace) {
+            mMessage = message;
+            mDurationMs = durationMs;
+            mStackTrace = stackTrace;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("Main looper blocked for ")
+                    .append(mDurationMs).append("ms by ").append(mMessage);
+            for (StackTraceElement element : mStackTrace) {
+                builder.append("\n\tat ").append(element);
+            }
+            return builder.toString();
+        }
+    }
+
+    private static final Object sLock = new Object();
+    private static final List<Violation> sViolations = new ArrayList<>();
+    private static int sViolationCount;
+    private static volatile long sThresholdMs = DEFAULT_THRESHOLD_MS;
+    private static boolean sInstalled;
+
+    // Dispatch state; written on the main thread, the captured stack on the watchdog thread.
+    private static Handler sWatchdog;
+    private static String sDispatchedMessage;
+    private static long sDispatchStart;
+    private static volatile StackTraceElement[] sCapturedStack;
+
+    private static final Runnable CAPTURE_STACK = new Runnable() {
+        @Override
+        public void run() {
+            sCapturedStack = Looper.getMainLooper().getThread().getStackTrace();
+        }
+    };
+
+    private static final Printer DISPATCH_PRINTER = new Printer() {
+        @Override
+        public void println(String line) {
+            if (line.startsWith(">>>>>")) {
+                sDispatchedMessage = line;
+                sDispatchStart = SystemClock.uptimeMillis();
+                sCapturedStack = null;
+                sWatchdog.postDelayed(CAPTURE_STACK, sThresholdMs);
+            } else if (line.startsWith("<<<<<")) {
+                sWatchdog.removeCallbacks(CAPTURE_STACK);
+                final long duration = SystemClock.uptimeMillis() - sDispatchStart;
+                if (duration >= sThresholdMs) {
+                    final StackTraceElement[] stack = sCapturedStack;
+                    onViolation(new Violation(sDispatchedMessage.substring(5).trim(), duration,
+                            stack != null ? stack : new StackTraceElement[0]));
+                }
+            }
+        }
+    };
+
+    private MainThreadGuard() {
+    }
+
+    /**
+     * Enables the StrictMode policy and the watch of the main looper for this process. Does
+     * nothing if already installed. May be called from any thread.
+     */
+    public static void install() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    install();
+                }
+            });
+            return;
+        }
+        synchronized (sLock) {
+            if (sInstalled) {
+                return;
+            }
+            sInstalled = true;
+        }
+
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .detectCustomSlowCalls()
+                .penaltyLog()
+                .build());
+        StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectLeakedClosableObjects()
+                .detectLeakedSqlLiteObjects()
+                .penaltyLog()
+                .build());
+
+        final HandlerThread thread = new HandlerThread("MainThreadGuard");
+        thread.start();
+        sWatchdog = new Handler(thread.getLooper());
+        Looper.getMainLooper().setMessageLogging(DISPATCH_PRINTER);
+        Log.d(TAG, "install: Watching the main looper, threshold=" + sThresholdMs + "ms");
+    }
+
+    /**
+     * Sets how long a message of the main looper may run before it's a violation.
+     */
+    public static void setThresholdMs(long thresholdMs) {
+        sThresholdMs = thresholdMs;
+    }
+
+    private static void onViolation(@NonNull Violation violation) {
+        Log.w(TAG, violation.toString());
+        synchronized (sLock) {
+            sViolationCount++;
+            if (sViolations.size() < MAX_VIOLATIONS) {
+                sViolations.add(violation);
+            }
+        }
+    }
+
+    @NonNull
+    public static List<Violation> getViolations() {
+        synchronized (sLock) {
+            return new ArrayList<>(sViolations);
+        }
+    }
+
+    public static void clearViolations() {
+        synchronized (sLock) {
+            sViolations.clear();
+            sViolationCount = 0;
+        }
+    }
+
+    /**
+     * Throws an {@link AssertionError} listing the call sites that blocked the main looper
+     * since the violations were last cleared.
+     */
+    public static void assertNoViolations() {
+        synchronized (sLock) {
+            if (sViolationCount == 0) {
+                return;
+            }
+            final StringBuilder message = new StringBuilder()
+                    .append(sViolationCount).append(" main looper block(s) over ")
+                    .append(sThresholdMs).append("ms");
+            for (Violation violation : sViolations) {
+                message.append('\n').append(violation);
+            }
+            throw new AssertionError(message.toString());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Audio focus shared by players that play to the same output, such as the playback zones of
+ * the service. Separate focus requests would make the players pause each other; instead the
+ * group holds focus while any of its players wants it, and forwards focus changes to all of
+ * them.
+ * <p>
+ * May be called from any thread. Each player handles focus changes on its own thread.
+ */
+public class AudioFocusGroup implements AudioManager.OnAudioFocusChangeListener {
+
+    private final AudioManager mAudioManager;
+    // Players that hold focus through the group.
+    private final Set<PlayerAdapter> mHolders = new HashSet<>();
+    private boolean mHasFocus;
+
+    public AudioFocusGroup(@NonNull Context context) {
+        mAudioManager = (AudioManager) context.getApplicationContext()
+                .getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * Requests focus for {@code player}, and returns whether it was granted.
+     */
+    synchronized boolean request(@NonNull PlayerAdapter player) {
+        if (!mHasFocus) {
+            mHasFocus = mAudioManager.requestAudioFocus(this,
+                    AudioManager.STREAM_MUSIC,
+                    AudioManager.AUDIOFOCUS_GAIN) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+        }
+        if (mHasFocus) {
+            mHolders.add(player);
+        }
+        return mHasFocus;
+    }
+
+    /**
+     * Gives up the focus held by {@code player}. Focus is abandoned once no player holds it.
+     */
+    synchronized void abandon(@NonNull PlayerAdapter player) {
+        if (mHolders.remove(player) && mHolders.isEmpty() && mHasFocus) {
+            mAudioManager.abandonAudioFocus(this);
+            mHasFocus = false;
+        }
+    }
+
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        final List<PlayerAdapter> holders;
+        synchronized (this) {
+            if (focusChange == AudioManager.AUDIOFOCUS_LOSS) {
+                mAudioManager.abandonAudioFocus(this);
+                mHasFocus = false;
+            }
+            holders = new ArrayList<>(mHolders);
+            if (focusChange == AudioManager.AUDIOFOCUS_LOSS) {
+                mHolders.clear();
+            }
+        }
+        for (PlayerAdapter player : holders) {
+            player.postAudioFocusChange(focusChange);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the children returned from {@link MusicService#onLoadChildren}, keyed by parent
+ * media ID and page, so that the same list isn't rebuilt for every subscribed client. Entries
+ * of a parent are dropped with {@link #invalidate(String)} when its content changes, and all
+ * entries with {@link #trim()} when memory is needed.
+ * <p>
+ * Not thread safe; only used on the main thread.
+ */
+public class BrowseResultCache {
+
+    // Rough size of a cached item: its description's strings, URIs and the list overhead.
+    private static final int ESTIMATED_ITEM_BYTES = 512;
+
+    private final Map<String, Map<Long, List<MediaBrowserCompat.MediaItem>>> mResults =
+            new HashMap<>();
+    // Parents loaded since they were last invalidated, whether or not they are still cached.
+    private final Set<String> mLoadedParents = new HashSet<>();
+    private volatile long mItemCount;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Returns the cached page of children, or null if it isn't cached.
+     *
+     * @param page     Zero based page index, or -1 for all children.
+     * @param pageSize Number of items per page, or -1 for all children.
+     */
+    @Nullable
+    public List<MediaBrowserCompat.MediaItem> get(@NonNull String parentId,
+                                                  int page, int pageSize) {
+        final Map<Long, List<MediaBrowserCompat.MediaItem>> pages = mResults.get(parentId);
+        final List<MediaBrowserCompat.MediaItem> result =
+                pages != null ? pages.get(pageKey(page, pageSize)) : null;
+        if (result != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return result;
+    }
+
+    public void put(@NonNull String parentId, int page, int pageSize,
+                    @NonNull List<MediaBrowserCompat.MediaItem> children) {
+        Map<Long, List<MediaBrowserCompat.MediaItem>> pages = mResults.get(parentId);
+        if (pages == null) {
+            pages = new HashMap<>();
+            mResults.put(parentId, pages);
+        }
+        final List<MediaBrowserCompat.MediaItem> previous =
+                pages.put(pageKey(page, pageSize), children);
+        mItemCount += children.size() - (previous != null ? previous.size() : 0);
+        mLoadedParents.add(parentId);
+    }
+
+    /**
+     * Drops all cached pages of {@code parentId}.
+     *
+     * @return Whether a client has loaded the node since it was last invalidated, even if its
+     * pages have been trimmed since.
+     */
+    public boolean invalidate(@NonNull String parentId) {
+        final Map<Long, List<MediaBrowserCompat.MediaItem>> pages = mResults.remove(parentId);
+        if (pages != null) {
+            for (List<MediaBrowserCompat.MediaItem> children : pages.values()) {
+                mItemCount -= children.size();
+            }
+        }
+        return mLoadedParents.remove(parentId);
+    }
+
+    /**
+     * Drops all cached pages. Clients that loaded a node are still notified when it changes.
+     */
+    public void trim() {
+        mResults.clear();
+        mItemCount = 0;
+    }
+
+    public void clear() {
+        trim();
+        mLoadedParents.clear();
+    }
+
+    /**
+     * Returns an estimate of the memory held by the cached items. May be called from any
+     * thread.
+     */
+    public long getResidentBytes() {
+        return mItemCount * ESTIMATED_ITEM_BYTES;
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    public float getHitRate() {
+        final long total = mHitCount + mMissCount;
+        return total > 0 ? (float) mHitCount / total : 0f;
+    }
+
+    private static long pageKey(int page, int pageSize) {
+        return ((long) page << 32) | (pageSize & 0xffffffffL);
+    }
+}
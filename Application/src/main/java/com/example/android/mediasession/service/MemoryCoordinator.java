@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the memory held by the service's caches within one budget. Each cache registers as a
+ * {@link Trimmable} with a priority. When their total grows over the budget, or the system asks
+ * the app to trim memory, they are trimmed in priority order, lowest first, until the total
+ * fits again.
+ * <p>
+ * Budget checks and trimming run on the main thread. Trimmables owned by another thread report
+ * their size in a thread safe way, and trim themselves on their own thread.
+ */
+public class MemoryCoordinator {
+
+    private static final String TAG = MemoryCoordinator.class.getSimpleName();
+
+    // Priorities: the cheaper a cache is to rebuild, the lower its priority.
+    public static final int PRIORITY_BROWSE_CACHE = 10;
+    public static final int PRIORITY_NOTIFICATION_ART = 20;
+    public static final int PRIORITY_IDLE_PLAYER = 30;
+
+    /**
+     * A cache or pool whose memory is managed by the coordinator.
+     */
+    public interface Trimmable {
+        /**
+         * Returns an estimate of the memory held that could be released. May be called from
+         * any thread.
+         */
+        long getResidentBytes();
+
+        /**
+         * Releases memory until at most {@code maxBytes} are held. Called on the main thread;
+         * may release more than asked, or trim asynchronously.
+         */
+        void trimTo(long maxBytes);
+    }
+
+    private static class Entry {
+        final String mName;
+        final int mPriority;
+        final Trimmable mTrimmable;
+
+        Entry(String name, int priority, Trimmable trimmable) {
+            mName = name;
+            mPriority = priority;
+            mTrimmable = trimmable;
+        }
+    }
+
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.mPriority < b.mPriority ? -1 : (a.mPriority == b.mPriority ? 0 : 1);
+        }
+    };
+
+    private final long mBudgetBytes;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Sorted by priority. Replaced on every change, so that it can be iterated without a lock.
+    private volatile List<Entry> mEntries = Collections.emptyList();
+    private int mLastTrimLevel;
+    private int mTrimCount;
+    private boolean mCheckPending;
+
+    private final Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCheckPending = false;
+            trimTo(mBudgetBytes, "budget");
+        }
+    };
+
+    public MemoryCoordinator(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public synchronized void register(@NonNull String name,
+                                      int priority,
+                                      @NonNull Trimmable trimmable) {
+        final List<Entry> entries = new ArrayList<>(mEntries);
+        entries.add(new Entry(name, priority, trimmable));
+        Collections.sort(entries, BY_PRIORITY);
+        mEntries = entries;
+    }
+
+    public synchronized void unregister(@NonNull String name) {
+        final List<Entry> entries = new ArrayList<>(mEntries);
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i).mName.equals(name)) {
+                entries.remove(i);
+            }
+        }
+        mEntries = entries;
+    }
+
+    /**
+     * Called after a trimmable grew, to check the total against the budget. Checks are
+     * coalesced and run on the main thread. May be called from any thread.
+     */
+    public void onResidentBytesChanged() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onResidentBytesChanged();
+                }
+            });
+            return;
+        }
+        if (!mCheckPending) {
+            mCheckPending = true;
+            mHandler.post(mCheckRunnable);
+        }
+    }
+
+    /**
+     * Trims to a fraction of the budget that depends on how much memory the system needs.
+     *
+     * @param level The trim level, see {@link ComponentCallbacks2}.
+     */
+    public void onTrimMemory(int level) {
+        mLastTrimLevel = level;
+        trimTo(getTargetBytes(level), "onTrimMemory(" + level + ")");
+    }
+
+    private long getTargetBytes(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return mBudgetBytes / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return mBudgetBytes / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // The service has no UI of its own; hiding the activity frees nothing here.
+            return mBudgetBytes;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return mBudgetBytes / 4;
+        } else {
+            return mBudgetBytes / 2;
+        }
+    }
+
+    private void trimTo(long targetBytes, String reason) {
+        final List<Entry> entries = mEntries;
+        long total = getTotalBytes(entries);
+        if (total <= targetBytes) {
+            return;
+        }
+        Log.d(TAG, "trimTo: " + reason + " trimming " + total + " bytes to " + targetBytes);
+        mTrimCount++;
+        for (Entry entry : entries) {
+            final long resident = entry.mTrimmable.getResidentBytes();
+            if (resident == 0) {
+                continue;
+            }
+            final long keep = Math.max(0, resident - (total - targetBytes));
+            entry.mTrimmable.trimTo(keep);
+            // Asynchronous trimmables are counted as if they already complied.
+            total -= resident - keep;
+            if (total <= targetBytes) {
+                break;
+            }
+        }
+    }
+
+    private static long getTotalBytes(List<Entry> entries) {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.mTrimmable.getResidentBytes();
+        }
+        return total;
+    }
+
+    public void dump(@NonNull PrintWriter writer, @NonNull String prefix) {
+        final List<Entry> entries = mEntries;
+        writer.println(prefix + "budget=" + mBudgetBytes
+                + " resident=" + getTotalBytes(entries)
+                + " trims=" + mTrimCount
+                + " lastTrimLevel=" + mLastTrimLevel);
+        for (Entry entry : entries) {
+            writer.println(prefix + "  " + entry.mName
+                    + " priority=" + entry.mPriority
+                    + " resident=" + entry.mTrimmable.getResidentBytes());
+        }
+    }
+}
@@ -16,56 +16,398 @@
 
 package com.example.android.mediasession.service;
 
+import android.Manifest;
 import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.os.TraceCompat;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserServiceCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.mediasession.BuildConfig;
+import com.example.android.mediasession.R;
+import com.example.android.mediasession.debug.MainThreadGuard;
+import com.example.android.mediasession.service.contentcatalogs.AlbumArtProvider;
+import com.example.android.mediasession.service.contentcatalogs.CatalogSource;
+import com.example.android.mediasession.service.contentcatalogs.HttpCatalogSource;
+import com.example.android.mediasession.service.contentcatalogs.LocalDirectorySource;
+import com.example.android.mediasession.service.contentcatalogs.MediaStoreSource;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.metrics.MeteredMediaSession;
+import com.example.android.mediasession.service.metrics.MetricsSink;
+import com.example.android.mediasession.service.metrics.PayloadAccounting;
+import com.example.android.mediasession.service.metrics.PlaybackMetrics;
 import com.example.android.mediasession.service.notifications.MediaNotificationManager;
+import com.example.android.mediasession.service.persistence.PlaybackJournal;
 import com.example.android.mediasession.service.players.MediaPlayerAdapter;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class MusicService extends MediaBrowserServiceCompat {
 
     private static final String TAG = MusicService.class.getSimpleName();
 
-    private MediaSessionCompat mSession;
-    private PlayerAdapter mPlayback;
-    private MediaNotificationManager mMediaNotificationManager;
-    private MediaSessionCallback mCallback;
+    /**
+     * Media ID of a browsable node that exposes the full play queue. When the queue is larger
+     * than the published window, clients page through it with
+     * {@link MediaBrowserCompat#EXTRA_PAGE} and {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}.
+     * The queue of another zone is exposed as {@code QUEUE_MEDIA_ID + "/" + zoneId}.
+     */
+    public static final String QUEUE_MEDIA_ID = "__QUEUE__";
+
+    /**
+     * Media ID of a browsable node listing the playback zones. Each item's media ID is the
+     * zone's queue node, its title the zone ID, and its extras hold the zone's session token
+     * under {@link #EXTRA_SESSION_TOKEN}.
+     */
+    public static final String ZONES_MEDIA_ID = "__ZONES__";
+
+    /**
+     * Session commands, sent with {@link MediaControllerCompat#sendCommand}, that add or
+     * remove a playback zone. The zone ID is passed as {@link #EXTRA_ZONE_ID}, and the key
+     * found in the extras of the browser root under {@link #EXTRA_ZONE_KEY}. Adding a zone
+     * replies with the zone's session token under {@link #EXTRA_SESSION_TOKEN}.
+     */
+    public static final String COMMAND_ADD_ZONE = "com.example.android.mediasession.ADD_ZONE";
+    public static final String COMMAND_REMOVE_ZONE =
+            "com.example.android.mediasession.REMOVE_ZONE";
+    public static final String EXTRA_ZONE_ID = "com.example.android.mediasession.ZONE_ID";
+
+    /**
+     * Key that allows sending zone commands. Session tokens reach any app that may connect,
+     * so only trusted callers get the key, in the extras of their browser root.
+     */
+    public static final String EXTRA_ZONE_KEY = "com.example.android.mediasession.ZONE_KEY";
+    public static final String EXTRA_SESSION_TOKEN =
+            "com.example.android.mediasession.SESSION_TOKEN";
+
+    /**
+     * Session command that sets how many queue items the receiving session publishes around
+     * its current item, passed as {@link #EXTRA_QUEUE_WINDOW_SIZE}; 0 publishes the whole
+     * queue. Needs the key under {@link #EXTRA_ZONE_KEY}, as a large window can exceed the
+     * Binder transaction limit for every controller. Replies with result code 1 once set.
+     */
+    public static final String COMMAND_SET_QUEUE_WINDOW =
+            "com.example.android.mediasession.SET_QUEUE_WINDOW";
+    public static final String EXTRA_QUEUE_WINDOW_SIZE =
+            "com.example.android.mediasession.QUEUE_WINDOW_SIZE";
+
+    /**
+     * Session command that loads the catalog sources again that had no permission to read
+     * their tracks, e.g. sent by a client once the user granted storage access. The service
+     * checks the permission itself, so any client may send it.
+     */
+    public static final String COMMAND_RELOAD_LIBRARY =
+            "com.example.android.mediasession.RELOAD_LIBRARY";
+
+    /**
+     * Session command that does nothing but reply with result code 1. A session handles
+     * commands in order, so the reply tells that those sent before it have been handled.
+     */
+    public static final String COMMAND_PING = "com.example.android.mediasession.PING";
+
+    // ID of the zone of the default session, whose token is the service's session token.
+    private static final String DEFAULT_ZONE_ID = "default";
+
+    // Intent action used by the notification of a zone to send it transport controls.
+    private static final String ACTION_ZONE_COMMAND =
+            "com.example.android.mediasession.ZONE_COMMAND";
+    private static final String EXTRA_ZONE_ACTION = "com.example.android.mediasession.ACTION";
+
+    // Maximum number of playback zones, the default one included.
+    private static final int MAX_ZONES = 8;
+
+    // Number of queue items published to the session around the current item.
+    private static final int DEFAULT_QUEUE_WINDOW_SIZE = 25;
+
+    // Root returned to the system for playback resumption; it contains the last played item.
+    private static final String RECENT_MEDIA_ID = "__RECENT__";
+
+    // Root returned to callers that may connect to the session, but not browse.
+    private static final String EMPTY_MEDIA_ID = "__EMPTY__";
+
+    private static final long POSITION_CHECKPOINT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(5);
+
+    // Share of the heap that the caches of the service may hold together.
+    private static final int MEMORY_BUDGET_DIVISOR = 8;
+
+    /**
+     * Creates the player of each playback zone, on the zone's thread.
+     */
+    public interface PlayerFactory {
+        PlayerAdapter createPlayer(Context context, PlaybackInfoListener listener);
+    }
+
+    private static final PlayerFactory DEFAULT_PLAYER_FACTORY = new PlayerFactory() {
+        @Override
+        public PlayerAdapter createPlayer(Context context, PlaybackInfoListener listener) {
+            return new MediaPlayerAdapter(context, listener);
+        }
+    };
+
+    private static volatile PlayerFactory sPlayerFactory = DEFAULT_PLAYER_FACTORY;
+
+    private static final List<MetricsSink> sMetricsSinks = new CopyOnWriteArrayList<>();
+
+    /**
+     * Replaces the player of zones created from now on, for example with one that plays
+     * nothing in load tests. Only affects a service running in the caller's process.
+     *
+     * @param factory The factory to use, or null to restore the {@link MediaPlayerAdapter}.
+     */
+    @VisibleForTesting
+    public static void setPlayerFactory(@Nullable PlayerFactory factory) {
+        sPlayerFactory = factory != null ? factory : DEFAULT_PLAYER_FACTORY;
+    }
+
+    /**
+     * Adds a sink for the play, skip and seek latencies measured by every zone, see
+     * {@link PlaybackMetrics}. Only affects a service running in the caller's process.
+     */
+    public static void addMetricsSink(@NonNull MetricsSink sink) {
+        sMetricsSinks.add(sink);
+    }
+
+    public static void removeMetricsSink(@NonNull MetricsSink sink) {
+        sMetricsSinks.remove(sink);
+    }
+
+    // All zones, the default one first. Zones other than the default one run on their own
+    // playback thread; only the list itself is shared with those threads.
+    private final List<PlaybackZone> mZones = new CopyOnWriteArrayList<>();
+    private PlaybackZone mDefaultZone;
+    private int mNextNotificationId = MediaNotificationManager.NOTIFICATION_ID;
+
+    // Started and foreground state of the service, shared by all zones. Only one zone's
+    // notification can be attached to the service with startForeground() at a time.
     private boolean mServiceInStartedState;
+    private PlaybackZone mForegroundZone;
+
+    private final Handler mHandler = new Handler();
+    private final BrowseResultCache mBrowseCache = new BrowseResultCache();
+    private final MemoryCoordinator mMemoryCoordinator =
+            new MemoryCoordinator(Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_DIVISOR);
+    private final PayloadAccounting mPayloadAccounting = new PayloadAccounting();
+    private PackageValidator mPackageValidator;
+    private final String mZoneKey = createZoneKey();
+    // All zones play to the same output, so they share audio focus.
+    private AudioFocusGroup mAudioFocusGroup;
+    private final List<CatalogSource> mCatalogSources = new ArrayList<>();
+    // Whether the catalog sources finished their initial load, and what waits for it. Until
+    // then, a saved queue with tracks of those sources can't be restored. Guarded by the list.
+    private boolean mCatalogLoaded;
+    private final List<Runnable> mCatalogLoadedActions = new ArrayList<>();
+    private final MusicLibrary.Listener mCatalogListener = new MusicLibrary.Listener() {
+        @Override
+        public void onCatalogChanged() {
+            invalidateChildren(MusicLibrary.getRoot());
+        }
+
+        @Override
+        public void onTracksRemoved(@NonNull List<String> mediaIds) {
+            final Set<String> removed = new HashSet<>(mediaIds);
+            for (final PlaybackZone zone : mZones) {
+                zone.mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (zone.mCallback != null) {
+                            zone.mCallback.removeFromQueue(removed);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onSourcesLoaded() {
+            onCatalogLoaded();
+        }
+    };
+    private final List<Result<List<MediaBrowserCompat.MediaItem>>> mPendingRecentResults =
+            new ArrayList<>();
+
+    // Startup timing: when onCreate() started, and how long until the first client got its
+    // root (-1 until then).
+    private long mCreateTime;
+    private long mTimeToFirstGetRootMs = -1;
 
     @Override
     public void onCreate() {
-        super.onCreate();
+        mCreateTime = SystemClock.elapsedRealtime();
+        if (BuildConfig.DEBUG) {
+            MainThreadGuard.install();
+        }
+        TraceCompat.beginSection("MusicService.onCreate");
+        try {
+            super.onCreate();
+
+            mMemoryCoordinator.register("browse-cache", MemoryCoordinator.PRIORITY_BROWSE_CACHE,
+                    new MemoryCoordinator.Trimmable() {
+                        @Override
+                        public long getResidentBytes() {
+                            return mBrowseCache.getResidentBytes();
+                        }
 
-        // Create a new MediaSession.
-        mSession = new MediaSessionCompat(this, "MusicService");
-        mCallback = new MediaSessionCallback();
-        mSession.setCallback(mCallback);
-        mSession.setFlags(
-                MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
-                MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS |
-                MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
-        setSessionToken(mSession.getSessionToken());
+                        @Override
+                        public void trimTo(long maxBytes) {
+                            mBrowseCache.trim();
+                        }
+                    });
 
-        mMediaNotificationManager = new MediaNotificationManager(this);
+            mAudioFocusGroup = new AudioFocusGroup(this);
 
-        mPlayback = new MediaPlayerAdapter(this, new MediaPlayerListener());
+            // The default zone runs on the main thread, so its session exists right away.
+            mDefaultZone = new PlaybackZone(DEFAULT_ZONE_ID, null);
+            mDefaultZone.initialize(null);
+            mZones.add(mDefaultZone);
+            setSessionToken(mDefaultZone.mSession.getSessionToken());
+
+            TraceCompat.beginSection("PackageValidator");
+            mPackageValidator = new PackageValidator(this);
+            TraceCompat.endSection();
+
+            // The bundled tracks are enough to start; other sources stream in afterwards.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    loadCatalogSources();
+                }
+            });
+        } finally {
+            TraceCompat.endSection();
+        }
         Log.d(TAG, "onCreate: MusicService creating MediaSession, and MediaNotificationManager");
     }
 
+    /**
+     * Starts loading the catalog sources other than the bundled tracks, in order of
+     * preference for tracks found in several of them. Clients browsing the library are told
+     * about new tracks as each source delivers them.
+     */
+    private void loadCatalogSources() {
+        mCatalogSources.add(new LocalDirectorySource(null));
+        mCatalogSources.add(new MediaStoreSource());
+        if (!BuildConfig.REMOTE_CATALOG_URL.isEmpty()) {
+            try {
+                mCatalogSources.add(
+                        new HttpCatalogSource(new URL(BuildConfig.REMOTE_CATALOG_URL)));
+            } catch (MalformedURLException e) {
+                Log.w(TAG, "loadCatalogSources: Invalid catalog URL", e);
+            }
+        }
+        MusicLibrary.loadSources(this, mCatalogSources, mCatalogListener);
+    }
+
+    /**
+     * Loads the catalog sources again that couldn't read the library for lack of a
+     * permission, if it has been granted since.
+     */
+    private void reloadCatalogSources() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        for (int i = 0; i < mCatalogSources.size(); i++) {
+            final CatalogSource source = mCatalogSources.get(i);
+            if (source instanceof MediaStoreSource
+                    && ((MediaStoreSource) source).isMissingPermission()) {
+                Log.i(TAG, "reloadCatalogSources: Reloading " + source.getName());
+                source.release();
+                final MediaStoreSource reloaded = new MediaStoreSource();
+                mCatalogSources.set(i, reloaded);
+                MusicLibrary.reloadSource(this, i, reloaded, mCatalogListener);
+            }
+        }
+    }
+
+    private void onCatalogLoaded() {
+        final List<Runnable> actions;
+        synchronized (mCatalogLoadedActions) {
+            mCatalogLoaded = true;
+            actions = new ArrayList<>(mCatalogLoadedActions);
+            mCatalogLoadedActions.clear();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * Runs {@code action} once the catalog sources finished their initial load, right away if
+     * they have. May be called from any thread; the action runs on the thread of the call or
+     * of the last source.
+     */
+    private void runWhenCatalogLoaded(@NonNull Runnable action) {
+        synchronized (mCatalogLoadedActions) {
+            if (!mCatalogLoaded) {
+                mCatalogLoadedActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_ZONE_COMMAND.equals(intent.getAction())) {
+            final PlaybackZone zone = findZone(intent.getStringExtra(EXTRA_ZONE_ID));
+            if (zone != null) {
+                zone.dispatchAction(intent.getLongExtra(EXTRA_ZONE_ACTION, 0));
+            }
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryCoordinator.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryCoordinator.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    public MemoryCoordinator getMemoryCoordinator() {
+        return mMemoryCoordinator;
+    }
+
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         super.onTaskRemoved(rootIntent);
@@ -74,9 +416,14 @@ public class MusicService extends MediaBrowserServiceCompat {
 
     @Override
     public void onDestroy() {
-        mMediaNotificationManager.onDestroy();
-        mPlayback.stop();
-        mSession.release();
+        mPackageValidator.release();
+        for (CatalogSource source : mCatalogSources) {
+            source.release();
+        }
+        for (PlaybackZone zone : mZones) {
+            zone.release();
+        }
+        mZones.clear();
         Log.d(TAG, "onDestroy: MediaPlayerAdapter stopped, and MediaSession released");
     }
 
@@ -84,163 +431,1106 @@ public class MusicService extends MediaBrowserServiceCompat {
     public BrowserRoot onGetRoot(@NonNull String clientPackageName,
                                  int clientUid,
                                  Bundle rootHints) {
-        return new BrowserRoot(MusicLibrary.getRoot(), null);
+        if (mTimeToFirstGetRootMs < 0) {
+            mTimeToFirstGetRootMs = SystemClock.elapsedRealtime() - mCreateTime;
+            Log.i(TAG, "onGetRoot: First root requested " + mTimeToFirstGetRootMs
+                    + "ms after onCreate");
+        }
+        final BrowserRoot root = createRoot(clientPackageName, clientUid, rootHints);
+        mPayloadAccounting.recordBundle(
+                PayloadAccounting.API_GET_ROOT, clientPackageName, root.getExtras());
+        return root;
+    }
+
+    private BrowserRoot createRoot(@NonNull String clientPackageName,
+                                   int clientUid,
+                                   Bundle rootHints) {
+        if (!mPackageValidator.isCallerTrusted(clientPackageName, clientUid)) {
+            // Let the caller connect to the session, but don't expose the library.
+            Log.i(TAG, "onGetRoot: Untrusted caller " + clientPackageName);
+            return new BrowserRoot(EMPTY_MEDIA_ID, null);
+        }
+        AlbumArtProvider.grantReadAccess(this, clientPackageName);
+        if (rootHints != null && rootHints.getBoolean(BrowserRoot.EXTRA_RECENT)) {
+            // The system is asking for the most recently played item to offer resumption.
+            final Bundle extras = new Bundle();
+            extras.putBoolean(BrowserRoot.EXTRA_RECENT, true);
+            return new BrowserRoot(RECENT_MEDIA_ID, extras);
+        }
+        final Bundle extras = new Bundle();
+        extras.putString(EXTRA_ZONE_KEY, mZoneKey);
+        return new BrowserRoot(MusicLibrary.getRoot(), extras);
+    }
+
+    private static String createZoneKey() {
+        final byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        final StringBuilder hex = new StringBuilder(key.length * 2);
+        for (byte b : key) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
     }
 
     @Override
     public void onLoadChildren(
             @NonNull final String parentMediaId,
             @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
-        result.sendResult(MusicLibrary.getMediaItems());
+        if (EMPTY_MEDIA_ID.equals(parentMediaId)) {
+            sendChildren(result, parentMediaId, new ArrayList<MediaBrowserCompat.MediaItem>());
+            return;
+        }
+        if (RECENT_MEDIA_ID.equals(parentMediaId)) {
+            final MediaSessionCallback callback = mDefaultZone.mCallback;
+            if (!callback.isRestored()) {
+                // Answer once the journal has been read.
+                result.detach();
+                mPendingRecentResults.add(result);
+            } else {
+                sendChildren(result, parentMediaId, callback.getRecentItems());
+            }
+            return;
+        }
+        if (ZONES_MEDIA_ID.equals(parentMediaId)) {
+            sendChildren(result, parentMediaId, getZoneItems());
+            return;
+        }
+        sendChildren(result, parentMediaId, loadChildren(parentMediaId, -1, -1));
     }
 
-    // MediaSession Callback: Transport Controls -> MediaPlayerAdapter
-    public class MediaSessionCallback extends MediaSessionCompat.Callback {
-        private final List<MediaSessionCompat.QueueItem> mPlaylist = new ArrayList<>();
-        private int mQueueIndex = -1;
-        private MediaMetadataCompat mPreparedMedia;
+    @Override
+    public void onLoadChildren(
+            @NonNull final String parentMediaId,
+            @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result,
+            @NonNull final Bundle options) {
+        if (parentMediaId.startsWith(QUEUE_MEDIA_ID)) {
+            // Build only the requested page instead of letting the framework slice the
+            // whole queue.
+            sendChildren(result, parentMediaId, loadChildren(parentMediaId,
+                    options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1),
+                    options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1)));
+            return;
+        }
+        super.onLoadChildren(parentMediaId, result, options);
+    }
 
-        @Override
-        public void onAddQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.add(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            mQueueIndex = (mQueueIndex == -1) ? 0 : mQueueIndex;
-            mSession.setQueue(mPlaylist);
+    /**
+     * Sends the children of a node to the client that asked for them. The payload is recorded
+     * per node: this version of MediaBrowserServiceCompat doesn't tell which client is asking.
+     */
+    private void sendChildren(@NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                              @NonNull String parentMediaId,
+                              List<MediaBrowserCompat.MediaItem> children) {
+        mPayloadAccounting.recordList(PayloadAccounting.API_SEND_RESULT, parentMediaId, children);
+        result.sendResult(children);
+    }
+
+    /**
+     * Returns the children of a node, from the cache if another client already loaded them.
+     */
+    private List<MediaBrowserCompat.MediaItem> loadChildren(
+            @NonNull String parentMediaId, int page, int pageSize) {
+        List<MediaBrowserCompat.MediaItem> children =
+                mBrowseCache.get(parentMediaId, page, pageSize);
+        if (children == null) {
+            if (parentMediaId.startsWith(QUEUE_MEDIA_ID)) {
+                final PlaybackZone zone = findZoneByQueueMediaId(parentMediaId);
+                children = zone != null
+                        ? zone.mCallback.getQueuePage(page, pageSize)
+                        : new ArrayList<MediaBrowserCompat.MediaItem>();
+            } else {
+                children = MusicLibrary.getMediaItems();
+            }
+            mBrowseCache.put(parentMediaId, page, pageSize, children);
+            mMemoryCoordinator.onResidentBytesChanged();
         }
+        return children;
+    }
 
-        @Override
-        public void onRemoveQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.remove(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            mQueueIndex = (mPlaylist.isEmpty()) ? -1 : mQueueIndex;
-            mSession.setQueue(mPlaylist);
+    /**
+     * Drops the cached children of {@code parentMediaId} after its content changed, and asks
+     * subscribed clients to reload it. Nothing is sent if no client loaded the node since the
+     * last change, since it will be rebuilt on the next load anyway.
+     * <p>
+     * May be called from any zone's thread.
+     */
+    private void invalidateChildren(@NonNull final String parentMediaId) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    invalidateChildren(parentMediaId);
+                }
+            });
+            return;
+        }
+        if (mBrowseCache.invalidate(parentMediaId)) {
+            notifyChildrenChanged(parentMediaId);
         }
+    }
 
-        @Override
-        public void onPrepare() {
-            if (mQueueIndex < 0 && mPlaylist.isEmpty()) {
-                // Nothing to play.
-                return;
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        writer.println("Browse cache: hits=" + mBrowseCache.getHitCount()
+                + " misses=" + mBrowseCache.getMissCount()
+                + " hitRate=" + mBrowseCache.getHitRate());
+        writer.println("Memory:");
+        mMemoryCoordinator.dump(writer, "  ");
+        writer.println("Zones: " + mZones.size());
+        for (PlaybackZone zone : mZones) {
+            writer.println("Latencies of zone " + zone.mZoneId + ":");
+            zone.mMetrics.dump(writer, "  ");
+        }
+        writer.println("Time to first onGetRoot: " + mTimeToFirstGetRootMs + "ms");
+        if (mPayloadAccounting.isEnabled()) {
+            writer.println("Binder payloads:");
+            mPayloadAccounting.dump(writer, "  ");
+        }
+    }
+
+    /**
+     * Adds a playback zone with its own session, queue, player and notification, running on
+     * its own playback thread. The catalog is shared with the other zones.
+     *
+     * @param onReady Receives the zone's session token with result code 1 once the zone is
+     *                ready, result code 0 if a zone with that ID already exists, or -1 if
+     *                there are already {@link #MAX_ZONES} zones.
+     */
+    private void addZone(@NonNull String zoneId, @Nullable ResultReceiver onReady) {
+        final PlaybackZone existing = findZone(zoneId);
+        if (existing != null || mZones.size() >= MAX_ZONES) {
+            if (onReady != null) {
+                onReady.send(existing != null ? 0 : -1, null);
             }
+            return;
+        }
+
+        final HandlerThread thread = new HandlerThread(
+                "Zone:" + zoneId, Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        final PlaybackZone zone = new PlaybackZone(zoneId, thread);
+        mZones.add(zone);
+        zone.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                zone.initialize(onReady);
+            }
+        });
+        Log.d(TAG, "addZone: " + zoneId);
+    }
+
+    private void removeZone(@NonNull String zoneId) {
+        final PlaybackZone zone = findZone(zoneId);
+        if (zone == null || zone == mDefaultZone) {
+            return;
+        }
+        mZones.remove(zone);
+        zone.release();
+        invalidateChildren(ZONES_MEDIA_ID);
+        Log.d(TAG, "removeZone: " + zoneId);
+    }
+
+    private boolean isZoneKey(@Nullable String key) {
+        // Compared in constant time, so that the key can't be guessed byte by byte.
+        final Charset utf8 = Charset.forName("UTF-8");
+        return key != null && MessageDigest.isEqual(key.getBytes(utf8), mZoneKey.getBytes(utf8));
+    }
 
-            final String mediaId = mPlaylist.get(mQueueIndex).getDescription().getMediaId();
-            mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
-            mSession.setMetadata(mPreparedMedia);
+    @Nullable
+    private PlaybackZone findZone(@Nullable String zoneId) {
+        for (PlaybackZone zone : mZones) {
+            if (zone.mZoneId.equals(zoneId)) {
+                return zone;
+            }
+        }
+        return null;
+    }
 
-            if (!mSession.isActive()) {
-                mSession.setActive(true);
+    @Nullable
+    private PlaybackZone findZoneByQueueMediaId(@NonNull String queueMediaId) {
+        for (PlaybackZone zone : mZones) {
+            if (zone.getQueueMediaId().equals(queueMediaId)) {
+                return zone;
             }
         }
+        return null;
+    }
 
-        @Override
-        public void onPlay() {
-            if (!isReadyToPlay()) {
-                // Nothing to play.
-                return;
+    private List<MediaBrowserCompat.MediaItem> getZoneItems() {
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(mZones.size());
+        for (PlaybackZone zone : mZones) {
+            final MediaSessionCompat session = zone.mSession;
+            if (session == null) {
+                // Still initializing on its thread.
+                continue;
             }
+            final Bundle extras = new Bundle();
+            extras.putParcelable(EXTRA_SESSION_TOKEN, session.getSessionToken());
+            result.add(new MediaBrowserCompat.MediaItem(
+                    new MediaDescriptionCompat.Builder()
+                            .setMediaId(zone.getQueueMediaId())
+                            .setTitle(zone.mZoneId)
+                            .setExtras(extras)
+                            .build(),
+                    MediaBrowserCompat.MediaItem.FLAG_BROWSABLE));
+        }
+        return result;
+    }
 
-            if (mPreparedMedia == null) {
-                onPrepare();
+    /**
+     * Builds the intent used by the notification of a zone to send it a transport control
+     * {@code action}, such as {@link PlaybackStateCompat#ACTION_PLAY}.
+     */
+    public static PendingIntent buildZoneActionIntent(Context context, String zoneId,
+                                                      long action) {
+        final Intent intent = new Intent(context, MusicService.class)
+                .setAction(ACTION_ZONE_COMMAND)
+                // Makes the intent unique per zone and action.
+                .setData(Uri.fromParts("zone", zoneId, String.valueOf(action)))
+                .putExtra(EXTRA_ZONE_ID, zoneId)
+                .putExtra(EXTRA_ZONE_ACTION, action);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * A playback zone: a session with its own queue, player, notification and journal. The
+     * default zone runs on the main thread; other zones run on their own playback thread, and
+     * only share the read-only catalog and the started/foreground state of the service.
+     */
+    private class PlaybackZone {
+        private final String mZoneId;
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        private final int mNotificationId;
+        private final PlaybackMetrics mMetrics = new PlaybackMetrics(sMetricsSinks);
+
+        private volatile MediaSessionCompat mSession;
+        // Forwards the session updates sent to controllers, measuring their payload.
+        private MeteredMediaSession mMeteredSession;
+        private PlayerAdapter mPlayback;
+        private MediaNotificationManager mMediaNotificationManager;
+        private MediaSessionCallback mCallback;
+        private PlaybackJournal mJournal;
+        private volatile PlaybackStateCompat mLastPlaybackState;
+        private volatile Notification mLastNotification;
+
+        // Periodically saves the playback position while playing.
+        private final Runnable mCheckpointRunnable = new Runnable() {
+            @Override
+            public void run() {
+                checkpointPosition();
+                mHandler.postDelayed(this, POSITION_CHECKPOINT_INTERVAL_MS);
             }
+        };
 
-            mPlayback.playFromMedia(mPreparedMedia);
-            Log.d(TAG, "onPlayFromMediaId: MediaSession active");
+        /**
+         * @param thread Playback thread of the zone, or null to run on the main thread.
+         */
+        PlaybackZone(@NonNull String zoneId, @Nullable HandlerThread thread) {
+            mZoneId = zoneId;
+            mThread = thread;
+            mHandler = thread != null ? new Handler(thread.getLooper()) : new Handler();
+            mNotificationId = mNextNotificationId++;
         }
 
-        @Override
-        public void onPause() {
-            mPlayback.pause();
+        private boolean isDefault() {
+            return mThread == null;
         }
 
-        @Override
-        public void onStop() {
-            mPlayback.stop();
-            mSession.setActive(false);
+        /**
+         * Creates the zone's components. Runs on the zone's thread, so that the session
+         * callbacks, the player and the notification updates all happen there.
+         */
+        private void initialize(@Nullable ResultReceiver onReady) {
+            // Create a new MediaSession.
+            TraceCompat.beginSection("MediaSession");
+            final MediaSessionCompat session = new MediaSessionCompat(MusicService.this,
+                    isDefault() ? "MusicService" : "MusicService:" + mZoneId);
+            mCallback = new MediaSessionCallback();
+            session.setCallback(mCallback, mHandler);
+            mMeteredSession = new MeteredMediaSession(session, mZoneId, mPayloadAccounting);
+            session.setFlags(
+                    MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
+                    MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS |
+                    MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+            TraceCompat.endSection();
+
+            // The notification actions are only built with the first notification.
+            TraceCompat.beginSection("MediaNotificationManager");
+            mMediaNotificationManager = new MediaNotificationManager(
+                    MusicService.this, mNotificationId, isDefault() ? null : mZoneId);
+            TraceCompat.endSection();
+
+            // The MediaPlayer itself is only created on the first play command.
+            TraceCompat.beginSection("MediaPlayerAdapter");
+            mPlayback = sPlayerFactory.createPlayer(MusicService.this, new MediaPlayerListener());
+            // Nothing routes zones to separate outputs: they all mix into the device's output,
+            // so they gain and lose audio focus together.
+            mPlayback.setAudioFocusGroup(mAudioFocusGroup);
+            mSession = session;
+            TraceCompat.endSection();
+
+            mMemoryCoordinator.register(getMemoryName("notification-art"),
+                    MemoryCoordinator.PRIORITY_NOTIFICATION_ART,
+                    new MemoryCoordinator.Trimmable() {
+                        @Override
+                        public long getResidentBytes() {
+                            return mMediaNotificationManager.getResidentBytes();
+                        }
+
+                        @Override
+                        public void trimTo(long maxBytes) {
+                            mMediaNotificationManager.trimMemory();
+                        }
+                    });
+            mMemoryCoordinator.register(getMemoryName("player"),
+                    MemoryCoordinator.PRIORITY_IDLE_PLAYER,
+                    new MemoryCoordinator.Trimmable() {
+                        @Override
+                        public long getResidentBytes() {
+                            return mPlayback.getResidentBytes();
+                        }
+
+                        @Override
+                        public void trimTo(long maxBytes) {
+                            onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+                        }
+                    });
+
+            // Restore the queue and position from the previous run without blocking.
+            TraceCompat.beginSection("PlaybackJournal");
+            mJournal = new PlaybackJournal(MusicService.this, isDefault()
+                    ? "playback.journal"
+                    : "playback-" + mZoneId + ".journal");
+            mJournal.restore(new PlaybackJournal.RestoreListener() {
+                @Override
+                public void onRestored(@NonNull PlaybackJournal.Snapshot snapshot) {
+                    onJournalRestored(snapshot);
+                }
+            });
+            TraceCompat.endSection();
+
+            if (!isDefault()) {
+                invalidateChildren(ZONES_MEDIA_ID);
+            }
+            if (onReady != null) {
+                final Bundle result = new Bundle();
+                result.putParcelable(EXTRA_SESSION_TOKEN, session.getSessionToken());
+                onReady.send(1, result);
+            }
         }
 
-        @Override
-        public void onSkipToNext() {
-            mQueueIndex = (++mQueueIndex % mPlaylist.size());
-            mPreparedMedia = null;
-            onPlay();
+        /**
+         * Restores the saved queue, once its tracks are in the catalog. A queue with tracks of
+         * sources that are still loading waits for them, so that those tracks aren't dropped
+         * from the queue and the journal.
+         */
+        private void onJournalRestored(@NonNull final PlaybackJournal.Snapshot snapshot) {
+            if (MusicLibrary.containsAll(snapshot.mediaIds)) {
+                mCallback.restore(snapshot);
+                return;
+            }
+            Log.d(TAG, "onJournalRestored: Waiting for the catalog to restore zone " + mZoneId);
+            runWhenCatalogLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mZones.contains(PlaybackZone.this)) {
+                                mCallback.restore(snapshot);
+                            }
+                        }
+                    });
+                }
+            });
         }
 
-        @Override
-        public void onSkipToPrevious() {
-            mQueueIndex = mQueueIndex > 0 ? mQueueIndex - 1 : mPlaylist.size() - 1;
-            mPreparedMedia = null;
-            onPlay();
+        private void release() {
+            final Runnable release = new Runnable() {
+                @Override
+                public void run() {
+                    mMemoryCoordinator.unregister(getMemoryName("notification-art"));
+                    mMemoryCoordinator.unregister(getMemoryName("player"));
+                    checkpointPosition();
+                    // Stopping reports a last state, whose position is saved to the journal,
+                    // so the journal is closed afterwards.
+                    mPlayback.stop();
+                    mHandler.removeCallbacks(mCheckpointRunnable);
+                    mJournal.close();
+                    mMediaNotificationManager.onDestroy();
+                    mSession.release();
+                    if (mThread != null) {
+                        mThread.quitSafely();
+                    }
+                }
+            };
+            if (isDefault()) {
+                // Called from onDestroy(), so release before the service goes away.
+                release.run();
+            } else {
+                mHandler.post(release);
+            }
         }
 
-        @Override
-        public void onSeekTo(long pos) {
-            mPlayback.seekTo(pos);
+        private String getMemoryName(String cache) {
+            return cache + ":" + mZoneId;
         }
 
-        private boolean isReadyToPlay() {
-            return (!mPlaylist.isEmpty());
+        private void onTrimMemory(final int level) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPlayback.onTrimMemory(level);
+                }
+            });
         }
-    }
 
-    // MediaPlayerAdapter Callback: MediaPlayerAdapter state -> MusicService.
-    public class MediaPlayerListener extends PlaybackInfoListener {
+        private void dispatchAction(long action) {
+            final MediaSessionCompat session = mSession;
+            if (session == null) {
+                return;
+            }
+            final MediaControllerCompat.TransportControls controls =
+                    session.getController().getTransportControls();
+            if (action == PlaybackStateCompat.ACTION_PLAY) {
+                controls.play();
+            } else if (action == PlaybackStateCompat.ACTION_PAUSE) {
+                controls.pause();
+            } else if (action == PlaybackStateCompat.ACTION_SKIP_TO_NEXT) {
+                controls.skipToNext();
+            } else if (action == PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) {
+                controls.skipToPrevious();
+            } else if (action == PlaybackStateCompat.ACTION_STOP) {
+                controls.stop();
+            }
+        }
 
-        private final ServiceManager mServiceManager;
+        private String getQueueMediaId() {
+            return isDefault() ? QUEUE_MEDIA_ID : QUEUE_MEDIA_ID + "/" + mZoneId;
+        }
 
-        MediaPlayerListener() {
-            mServiceManager = new ServiceManager();
+        private boolean isPlaying() {
+            final PlaybackStateCompat state = mLastPlaybackState;
+            return state != null && state.getState() == PlaybackStateCompat.STATE_PLAYING;
         }
 
-        @Override
-        public void onPlaybackStateChange(PlaybackStateCompat state) {
-            // Report the state to the MediaSession.
-            mSession.setPlaybackState(state);
+        private void checkpointPosition() {
+            if (mLastPlaybackState != null) {
+                mJournal.recordPosition(getPosition());
+            }
+        }
+
+        /**
+         * Returns the playback position within the current queue item, as last reported by
+         * the player.
+         */
+        private long getPosition() {
+            final PlaybackStateCompat state = mLastPlaybackState;
+            if (state == null) {
+                return 0;
+            }
 
-            // Manage the started state of this service.
-            switch (state.getState()) {
-                case PlaybackStateCompat.STATE_PLAYING:
-                    mServiceManager.moveServiceToStartedState(state);
-                    break;
-                case PlaybackStateCompat.STATE_PAUSED:
-                    mServiceManager.updateNotificationForPause(state);
-                    break;
-                case PlaybackStateCompat.STATE_STOPPED:
-                    mServiceManager.moveServiceOutOfStartedState(state);
-                    break;
+            long position = state.getPosition();
+            if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                position += (long) ((SystemClock.elapsedRealtime()
+                        - state.getLastPositionUpdateTime()) * state.getPlaybackSpeed());
             }
+            return position;
         }
 
-        class ServiceManager {
+        // MediaSession Callback: Transport Controls -> MediaPlayerAdapter
+        public class MediaSessionCallback extends MediaSessionCompat.Callback {
+            // Only modified on the zone's thread; guarded so the main thread can page
+            // through the queue of other zones.
+            private final List<MediaSessionCompat.QueueItem> mPlaylist = new ArrayList<>();
+            private int mQueueIndex = -1;
+            private MediaMetadataCompat mPreparedMedia;
+
+            // Only a window of the queue around mQueueIndex is sent to the session, so that
+            // large queues don't exceed the Binder transaction limit. A size of 0 or less
+            // publishes the whole queue.
+            private int mQueueWindowSize = DEFAULT_QUEUE_WINDOW_SIZE;
+            private int mPublishedWindowStart = -1;
+            private int mPublishedWindowEnd = -1;
+
+            // State restored from the journal.
+            private boolean mRestored;
+            private boolean mPlayWhenRestored;
+            private long mResumePosition;
+
+            @Override
+            public void onCommand(String command, final Bundle extras, final ResultReceiver cb) {
+                if (COMMAND_PING.equals(command)) {
+                    if (cb != null) {
+                        cb.send(1, null);
+                    }
+                    return;
+                }
+                if (COMMAND_RELOAD_LIBRARY.equals(command)) {
+                    MusicService.this.mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            reloadCatalogSources();
+                        }
+                    });
+                    return;
+                }
+                if (COMMAND_SET_QUEUE_WINDOW.equals(command)) {
+                    if (extras == null || !isZoneKey(extras.getString(EXTRA_ZONE_KEY))) {
+                        Log.w(TAG, "onCommand: Refusing " + command + " without the zone key");
+                        if (cb != null) {
+                            cb.send(-1, null);
+                        }
+                        return;
+                    }
+                    setQueueWindowSize(
+                            extras.getInt(EXTRA_QUEUE_WINDOW_SIZE, DEFAULT_QUEUE_WINDOW_SIZE));
+                    if (cb != null) {
+                        cb.send(1, null);
+                    }
+                    return;
+                }
+                if (!COMMAND_ADD_ZONE.equals(command) && !COMMAND_REMOVE_ZONE.equals(command)) {
+                    return;
+                }
+                final boolean add = COMMAND_ADD_ZONE.equals(command);
+                final String zoneId = extras != null ? extras.getString(EXTRA_ZONE_ID) : null;
+                if (zoneId == null) {
+                    return;
+                }
+                if (!isZoneKey(extras.getString(EXTRA_ZONE_KEY))) {
+                    Log.w(TAG, "onCommand: Refusing " + command + " without the zone key");
+                    if (cb != null) {
+                        cb.send(-1, null);
+                    }
+                    return;
+                }
+                // The zone list is managed on the main thread.
+                MusicService.this.mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (add) {
+                            addZone(zoneId, cb);
+                        } else {
+                            removeZone(zoneId);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onAddQueueItem(MediaDescriptionCompat description) {
+                synchronized (mPlaylist) {
+                    mPlaylist.add(
+                            new MediaSessionCompat.QueueItem(description, description.hashCode()));
+                }
+                mJournal.recordAdd(description.getMediaId());
+                if (mQueueIndex == -1) {
+                    mQueueIndex = 0;
+                    mJournal.recordQueueIndex(mQueueIndex);
+                }
+                publishQueue(true);
+            }
+
+            @Override
+            public void onRemoveQueueItem(MediaDescriptionCompat description) {
+                // QueueItem doesn't implement equals(), so the first item with the same media
+                // ID is removed, as the journal does when it is replayed.
+                final String mediaId = description.getMediaId();
+                int removed = -1;
+                synchronized (mPlaylist) {
+                    for (int i = 0; i < mPlaylist.size(); i++) {
+                        if (TextUtils.equals(
+                                mediaId, mPlaylist.get(i).getDescription().getMediaId())) {
+                            mPlaylist.remove(i);
+                            removed = i;
+                            break;
+                        }
+                    }
+                }
+                if (removed == -1) {
+                    return;
+                }
+                mJournal.recordRemove(mediaId);
+                final boolean removedCurrent = removed == mQueueIndex;
+                if (removedCurrent) {
+                    onCurrentItemRemoved();
+                }
+                if (mPlaylist.isEmpty()) {
+                    mQueueIndex = -1;
+                } else if (removed < mQueueIndex || mQueueIndex == mPlaylist.size()) {
+                    mQueueIndex--;
+                    mJournal.recordQueueIndex(mQueueIndex);
+                } else if (removedCurrent) {
+                    // The next item took its place; it starts from the beginning.
+                    mJournal.recordQueueIndex(mQueueIndex);
+                }
+                publishQueue(true);
+            }
+
+            /**
+             * Forgets the current item, which was removed from the queue, and stops playing
+             * it. The item that takes its place is prepared on the next play command.
+             */
+            private void onCurrentItemRemoved() {
+                mPreparedMedia = null;
+                mResumePosition = 0;
+                final PlaybackStateCompat state = mLastPlaybackState;
+                if (state != null && state.getState() != PlaybackStateCompat.STATE_STOPPED) {
+                    onStop();
+                }
+            }
 
-            private void moveServiceToStartedState(PlaybackStateCompat state) {
-                Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mPlayback.getCurrentMedia(), state, getSessionToken());
+            /**
+             * Drops the queue items of tracks that were removed from the catalog, and persists
+             * the resulting queue. Playback stops if the current item is removed.
+             */
+            private void removeFromQueue(@NonNull Set<String> mediaIds) {
+                boolean removedCurrent = false;
+                int removedCount = 0;
+                synchronized (mPlaylist) {
+                    for (int i = mPlaylist.size() - 1; i >= 0; i--) {
+                        if (!mediaIds.contains(mPlaylist.get(i).getDescription().getMediaId())) {
+                            continue;
+                        }
+                        mPlaylist.remove(i);
+                        removedCount++;
+                        if (i == mQueueIndex) {
+                            removedCurrent = true;
+                        } else if (i < mQueueIndex) {
+                            mQueueIndex--;
+                        }
+                    }
+                }
+                if (removedCount == 0) {
+                    return;
+                }
+                Log.d(TAG, "removeFromQueue: Removed " + removedCount + " queue items");
 
-                if (!mServiceInStartedState) {
-                    ContextCompat.startForegroundService(
-                            MusicService.this,
-                            new Intent(MusicService.this, MusicService.class));
-                    mServiceInStartedState = true;
+                if (removedCurrent) {
+                    onCurrentItemRemoved();
+                }
+                if (mPlaylist.isEmpty()) {
+                    mQueueIndex = -1;
+                } else {
+                    mQueueIndex = Math.max(0, Math.min(mQueueIndex, mPlaylist.size() - 1));
+                }
+                if (mRestored) {
+                    // Otherwise the restored queue is filtered, and persisted, when it arrives.
+                    mJournal.rewrite(getQueueMediaIds(), mQueueIndex,
+                            removedCurrent ? 0 : getPosition());
                 }
+                publishQueue(true);
+            }
+
+            /**
+             * Restores the queue and position saved by a previous instance of the service. If
+             * clients have already filled the queue, their queue is kept and persisted instead.
+             */
+            private void restore(@NonNull PlaybackJournal.Snapshot snapshot) {
+                mRestored = true;
 
-                startForeground(MediaNotificationManager.NOTIFICATION_ID, notification);
+                if (mPlaylist.isEmpty()) {
+                    synchronized (mPlaylist) {
+                        for (String mediaId : snapshot.mediaIds) {
+                            final MediaDescriptionCompat description =
+                                    MusicLibrary.getDescription(mediaId);
+                            if (description != null) {
+                                mPlaylist.add(new MediaSessionCompat.QueueItem(
+                                        description, description.hashCode()));
+                            }
+                        }
+                    }
+                    if (!mPlaylist.isEmpty()) {
+                        mQueueIndex = Math.max(0,
+                                Math.min(snapshot.queueIndex, mPlaylist.size() - 1));
+                        mResumePosition = snapshot.position;
+                        publishQueue(true);
+                    }
+                }
+                // The journal also holds the records of items queued before the restore, and
+                // is rewritten unless it matches the resulting queue.
+                mJournal.rewriteIfChanged(getQueueMediaIds(), mQueueIndex, mResumePosition);
+                Log.d(TAG, "restore: Restored " + mPlaylist.size() + " queue items");
+
+                if (isDefault()) {
+                    // Only the default zone is offered for resumption.
+                    for (Result<List<MediaBrowserCompat.MediaItem>> result
+                            : mPendingRecentResults) {
+                        sendChildren(result, RECENT_MEDIA_ID, getRecentItems());
+                    }
+                    mPendingRecentResults.clear();
+                }
+
+                if (mPlayWhenRestored) {
+                    mPlayWhenRestored = false;
+                    onPlay();
+                }
             }
 
-            private void updateNotificationForPause(PlaybackStateCompat state) {
-                stopForeground(false);
-                Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mPlayback.getCurrentMedia(), state, getSessionToken());
-                mMediaNotificationManager.getNotificationManager()
-                        .notify(MediaNotificationManager.NOTIFICATION_ID, notification);
+            private boolean isRestored() {
+                return mRestored;
             }
 
-            private void moveServiceOutOfStartedState(PlaybackStateCompat state) {
-                stopForeground(true);
-                stopSelf();
-                mServiceInStartedState = false;
+            /**
+             * Returns the current queue item, which is offered to the system for resumption.
+             */
+            private List<MediaBrowserCompat.MediaItem> getRecentItems() {
+                final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(1);
+                if (mQueueIndex >= 0 && mQueueIndex < mPlaylist.size()) {
+                    result.add(new MediaBrowserCompat.MediaItem(
+                            mPlaylist.get(mQueueIndex).getDescription(),
+                            MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+                }
+                return result;
+            }
+
+            private List<String> getQueueMediaIds() {
+                final List<String> mediaIds = new ArrayList<>(mPlaylist.size());
+                for (MediaSessionCompat.QueueItem item : mPlaylist) {
+                    mediaIds.add(item.getDescription().getMediaId());
+                }
+                return mediaIds;
+            }
+
+            /**
+             * Sets how many queue items are published to the session around the current item.
+             *
+             * @param windowSize Number of items to publish, or 0 to publish the whole queue.
+             */
+            private void setQueueWindowSize(int windowSize) {
+                mQueueWindowSize = windowSize;
+                publishQueue(true);
+            }
+
+            /**
+             * Publishes the window of the queue around the current item to the session.
+             *
+             * @param queueChanged Whether items were added or removed. If not, the queue is only
+             *                     republished when the window itself has moved.
+             */
+            private void publishQueue(boolean queueChanged) {
+                final int size = mPlaylist.size();
+                int start = 0;
+                int end = size;
+                if (mQueueWindowSize > 0 && size > mQueueWindowSize) {
+                    start = Math.max(0,
+                            Math.min(mQueueIndex - mQueueWindowSize / 2, size - mQueueWindowSize));
+                    end = start + mQueueWindowSize;
+                }
+
+                if (!queueChanged && start == mPublishedWindowStart && end == mPublishedWindowEnd) {
+                    return;
+                }
+                mPublishedWindowStart = start;
+                mPublishedWindowEnd = end;
+
+                mMeteredSession.setQueue(start == 0 && end == size
+                        ? mPlaylist
+                        : new ArrayList<>(mPlaylist.subList(start, end)));
+                if (queueChanged) {
+                    invalidateChildren(getQueueMediaId());
+                }
+            }
+
+            /**
+             * Returns a page of the full queue as playable {@link MediaBrowserCompat.MediaItem}s.
+             *
+             * @param page     Zero based page index, or -1 for the whole queue.
+             * @param pageSize Number of items per page, or -1 for the whole queue.
+             */
+            private List<MediaBrowserCompat.MediaItem> getQueuePage(int page, int pageSize) {
+                synchronized (mPlaylist) {
+                    int start = 0;
+                    int end = mPlaylist.size();
+                    if (page >= 0 && pageSize > 0) {
+                        start = Math.min(end, page * pageSize);
+                        end = Math.min(end, start + pageSize);
+                    }
+
+                    final List<MediaBrowserCompat.MediaItem> result =
+                            new ArrayList<>(end - start);
+                    for (int i = start; i < end; i++) {
+                        result.add(new MediaBrowserCompat.MediaItem(
+                                mPlaylist.get(i).getDescription(),
+                                MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+                    }
+                    return result;
+                }
+            }
+
+            @Override
+            public void onPrepare() {
+                if (mQueueIndex < 0 || mPlaylist.isEmpty()) {
+                    // Nothing to play.
+                    return;
+                }
+
+                final String mediaId = mPlaylist.get(mQueueIndex).getDescription().getMediaId();
+                mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
+                if (mPreparedMedia == null) {
+                    // Removed from the catalog since it was queued.
+                    Log.w(TAG, "onPrepare: " + mediaId + " is no longer available");
+                    mMetrics.cancel();
+                    mMeteredSession.setPlaybackState(new PlaybackStateCompat.Builder()
+                            .setActions(PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+                                    | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS)
+                            .setState(PlaybackStateCompat.STATE_ERROR, 0, 0f)
+                            .setErrorMessage(getString(R.string.error_track_unavailable))
+                            .build());
+                    return;
+                }
+                mMeteredSession.setMetadata(mPreparedMedia);
+
+                if (!mSession.isActive()) {
+                    mSession.setActive(true);
+                }
+            }
+
+            @Override
+            public void onPlay() {
+                if (!mPlayback.isPlaying()) {
+                    mMetrics.onCommand(PlaybackMetrics.OPERATION_PLAY);
+                }
+                playCurrentItem();
+            }
+
+            private void playCurrentItem() {
+                if (!isReadyToPlay()) {
+                    // Nothing to play yet, unless the previous queue is still being restored.
+                    mPlayWhenRestored = !mRestored;
+                    return;
+                }
+
+                if (mPreparedMedia == null) {
+                    onPrepare();
+                    if (mPreparedMedia == null) {
+                        return;
+                    }
+                }
+
+                mPlayback.playFromMedia(mPreparedMedia, mResumePosition);
+                mResumePosition = 0;
+                Log.d(TAG, "onPlayFromMediaId: MediaSession active");
+            }
+
+            @Override
+            public void onPause() {
+                mMetrics.cancel();
+                mPlayback.pause();
+            }
+
+            @Override
+            public void onStop() {
+                mMetrics.cancel();
+                mPlayback.stop();
+                mSession.setActive(false);
+            }
+
+            @Override
+            public void onSkipToNext() {
+                mQueueIndex = (++mQueueIndex % mPlaylist.size());
+                mPreparedMedia = null;
+                mResumePosition = 0;
+                mJournal.recordQueueIndex(mQueueIndex);
+                publishQueue(false);
+                mMetrics.onCommand(PlaybackMetrics.OPERATION_SKIP);
+                playCurrentItem();
+            }
+
+            @Override
+            public void onSkipToPrevious() {
+                mQueueIndex = mQueueIndex > 0 ? mQueueIndex - 1 : mPlaylist.size() - 1;
+                mPreparedMedia = null;
+                mResumePosition = 0;
+                mJournal.recordQueueIndex(mQueueIndex);
+                publishQueue(false);
+                mMetrics.onCommand(PlaybackMetrics.OPERATION_SKIP);
+                playCurrentItem();
+            }
+
+            @Override
+            public void onSeekTo(long pos) {
+                mMetrics.onCommand(PlaybackMetrics.OPERATION_SEEK);
+                if (mPlayback.getCurrentMedia() == null) {
+                    // Nothing loaded yet (e.g. a restored queue), so start from here on play.
+                    mResumePosition = pos;
+                }
+                mPlayback.seekTo(pos);
+            }
+
+            private boolean isReadyToPlay() {
+                return (!mPlaylist.isEmpty());
+            }
+
+            /**
+             * Drops the album art held by the prepared metadata and the session while playback
+             * is idle. The next play command prepares the metadata again.
+             */
+            private void dropAlbumArt() {
+                final MediaMetadataCompat currentMedia = mPlayback.getCurrentMedia();
+                if (mPreparedMedia != null && currentMedia != null) {
+                    mPreparedMedia = null;
+                    mMeteredSession.setMetadata(currentMedia);
+                }
             }
         }
 
+        // MediaPlayerAdapter Callback: MediaPlayerAdapter state -> MusicService.
+        public class MediaPlayerListener extends PlaybackInfoListener {
+
+            private final ServiceManager mServiceManager;
+
+            MediaPlayerListener() {
+                mServiceManager = new ServiceManager();
+            }
+
+            @Override
+            public void onIdleResourcesReleased() {
+                mCallback.dropAlbumArt();
+            }
+
+            @Override
+            public void onPlaybackPhase(int phase, long elapsedRealtimeMs) {
+                mMetrics.onPhase(phase, elapsedRealtimeMs);
+            }
+
+            @Override
+            public boolean isPositionAdvanceWanted() {
+                return mMetrics.isMeasuringPositionAdvance();
+            }
+
+            @Override
+            public void onPlaybackStateChange(PlaybackStateCompat state) {
+                // Report the state to the MediaSession.
+                mMeteredSession.setPlaybackState(state);
+
+                // Save the position, and keep saving it periodically while playing.
+                mLastPlaybackState = state;
+                checkpointPosition();
+                mHandler.removeCallbacks(mCheckpointRunnable);
+                if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                    mHandler.postDelayed(mCheckpointRunnable, POSITION_CHECKPOINT_INTERVAL_MS);
+                }
+
+                // Manage the started state of this service.
+                switch (state.getState()) {
+                    case PlaybackStateCompat.STATE_PLAYING:
+                        mServiceManager.moveServiceToStartedState(state);
+                        break;
+                    case PlaybackStateCompat.STATE_PAUSED:
+                        mServiceManager.updateNotificationForPause(state);
+                        break;
+                    case PlaybackStateCompat.STATE_STOPPED:
+                    case PlaybackStateCompat.STATE_ERROR:
+                        mServiceManager.moveServiceOutOfStartedState(state);
+                        break;
+                }
+            }
+
+            class ServiceManager {
+
+                private void moveServiceToStartedState(PlaybackStateCompat state) {
+                    final Notification notification =
+                            mMediaNotificationManager.getNotification(
+                                    mPlayback.getCurrentMedia(), state,
+                                    mSession.getSessionToken());
+                    mLastNotification = notification;
+
+                    if (onZonePlaying(PlaybackZone.this, notification)) {
+                        mMediaNotificationManager.onNotificationPosted(notification);
+                    } else {
+                        // Already in the foreground, or another zone is: only re-post if the
+                        // content changed.
+                        mMediaNotificationManager.postNotification(notification);
+                    }
+                }
+
+                private void updateNotificationForPause(PlaybackStateCompat state) {
+                    onZonePaused(PlaybackZone.this);
+                    final Notification notification =
+                            mMediaNotificationManager.getNotification(
+                                    mPlayback.getCurrentMedia(), state,
+                                    mSession.getSessionToken());
+                    mLastNotification = notification;
+                    mMediaNotificationManager.postNotification(notification);
+                }
+
+                private void moveServiceOutOfStartedState(PlaybackStateCompat state) {
+                    mLastNotification = null;
+                    onZoneStopped(PlaybackZone.this);
+                    mMediaNotificationManager.cancelNotification();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the service if needed, and attaches the notification of {@code zone} to it if no
+     * other zone's notification is.
+     *
+     * @return Whether the zone's notification was posted with startForeground().
+     */
+    private synchronized boolean onZonePlaying(PlaybackZone zone, Notification notification) {
+        if (!mServiceInStartedState) {
+            ContextCompat.startForegroundService(
+                    MusicService.this,
+                    new Intent(MusicService.this, MusicService.class));
+            mServiceInStartedState = true;
+        }
+
+        if (mForegroundZone == null || mForegroundZone == zone) {
+            startForeground(zone.mNotificationId, notification);
+            mForegroundZone = zone;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void onZonePaused(PlaybackZone zone) {
+        if (mForegroundZone == zone) {
+            handOverForeground(zone, false);
+        }
+    }
+
+    private synchronized void onZoneStopped(PlaybackZone zone) {
+        if (mForegroundZone == zone) {
+            handOverForeground(zone, true);
+        }
+        if (mForegroundZone == null && !isAnyZonePlaying()) {
+            stopSelf();
+            mServiceInStartedState = false;
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Detaches the notification of {@code zone} from the service, and attaches the one of
+     * another playing zone instead so that the service stays in the foreground.
+     */
+    private void handOverForeground(PlaybackZone zone, boolean removeNotification) {
+        for (PlaybackZone other : mZones) {
+            final Notification notification = other.mLastNotification;
+            if (other != zone && other.isPlaying() && notification != null) {
+                startForeground(other.mNotificationId, notification);
+                mForegroundZone = other;
+                if (removeNotification) {
+                    zone.mMediaNotificationManager.cancelNotification();
+                }
+                return;
+            }
+        }
+        stopForeground(removeNotification);
+        mForegroundZone = null;
+    }
+
+    private boolean isAnyZonePlaying() {
+        for (PlaybackZone zone : mZones) {
+            if (zone.isPlaying()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.R;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which apps may browse the media library. Trusted callers are this app, the system,
+ * apps signed with the platform certificate, the apps listed in
+ * {@code R.array.trusted_browser_callers} with the digest of their signing certificate, and
+ * the apps listed in {@code R.array.trusted_system_callers} if they are installed as part of
+ * the system image.
+ * <p>
+ * Reading package signatures is expensive, so the result for each (uid, package) is cached
+ * together with the certificate digest it was based on. Entries for a package are dropped
+ * when it is installed, updated or removed.
+ */
+public class PackageValidator {
+
+    private static final String TAG = PackageValidator.class.getSimpleName();
+
+    private static final String PLATFORM_PACKAGE = "android";
+
+    private final Context mContext;
+    private final PackageManager mPackageManager;
+
+    // Package name -> digests of the certificates it may be signed with.
+    private final Map<String, Set<String>> mTrustedCallers = new HashMap<>();
+    // Packages trusted when they are system apps, whatever their certificate.
+    private final Set<String> mTrustedSystemCallers = new HashSet<>();
+    private final Map<String, CallerInfo> mCache = new HashMap<>();
+    private String mPlatformCertificate;
+    private String mOwnCertificate;
+
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null) {
+                invalidate(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    /**
+     * Verified state of a calling package.
+     */
+    private static final class CallerInfo {
+        final String packageName;
+        final String certificate;
+        final boolean trusted;
+
+        CallerInfo(String packageName, String certificate, boolean trusted) {
+            this.packageName = packageName;
+            this.certificate = certificate;
+            this.trusted = trusted;
+        }
+    }
+
+    public PackageValidator(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+        mPackageManager = mContext.getPackageManager();
+
+        final String[] trustedCallers =
+                mContext.getResources().getStringArray(R.array.trusted_browser_callers);
+        for (String entry : trustedCallers) {
+            final int separator = entry.indexOf(':');
+            if (separator <= 0) {
+                Log.w(TAG, "Ignoring malformed trusted caller: " + entry);
+                continue;
+            }
+            final String packageName = entry.substring(0, separator).trim();
+            Set<String> certificates = mTrustedCallers.get(packageName);
+            if (certificates == null) {
+                certificates = new HashSet<>();
+                mTrustedCallers.put(packageName, certificates);
+            }
+            // Digests are hex, so they must not be lowercased with the rules of e.g. Turkish.
+            certificates.add(entry.substring(separator + 1).trim().toLowerCase(Locale.US));
+        }
+        mTrustedSystemCallers.addAll(Arrays.asList(
+                mContext.getResources().getStringArray(R.array.trusted_system_callers)));
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageChangeReceiver, filter);
+    }
+
+    public void release() {
+        mContext.unregisterReceiver(mPackageChangeReceiver);
+    }
+
+    /**
+     * Returns whether the caller may browse the media library.
+     */
+    public boolean isCallerTrusted(@NonNull String packageName, int uid) {
+        if (uid == Process.myUid() || uid == Process.SYSTEM_UID) {
+            return true;
+        }
+
+        final String key = uid + ":" + packageName;
+        CallerInfo info = mCache.get(key);
+        if (info == null) {
+            info = verify(packageName, uid);
+            mCache.put(key, info);
+            Log.d(TAG, "isCallerTrusted: " + packageName + " (" + uid + ") trusted="
+                    + info.trusted);
+        }
+        return info.trusted;
+    }
+
+    private CallerInfo verify(@NonNull String packageName, int uid) {
+        // The package must actually belong to the calling uid.
+        boolean ownedByUid = false;
+        final String[] packages = mPackageManager.getPackagesForUid(uid);
+        if (packages != null) {
+            for (String candidate : packages) {
+                if (packageName.equals(candidate)) {
+                    ownedByUid = true;
+                    break;
+                }
+            }
+        }
+        if (!ownedByUid) {
+            return new CallerInfo(packageName, null, false);
+        }
+
+        final String certificate = getCertificateDigest(packageName);
+        if (certificate == null) {
+            return new CallerInfo(packageName, null, false);
+        }
+
+        if (mPlatformCertificate == null) {
+            mPlatformCertificate = getCertificateDigest(PLATFORM_PACKAGE);
+        }
+        if (mOwnCertificate == null) {
+            mOwnCertificate = getCertificateDigest(mContext.getPackageName());
+        }
+        final Set<String> allowed = mTrustedCallers.get(packageName);
+        final boolean trusted = certificate.equals(mPlatformCertificate)
+                || certificate.equals(mOwnCertificate)
+                || (allowed != null && allowed.contains(certificate))
+                || (mTrustedSystemCallers.contains(packageName) && isSystemApp(packageName));
+        return new CallerInfo(packageName, certificate, trusted);
+    }
+
+    private boolean isSystemApp(@NonNull String packageName) {
+        try {
+            final ApplicationInfo info = mPackageManager.getApplicationInfo(packageName, 0);
+            return (info.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void invalidate(@NonNull String packageName) {
+        final Iterator<CallerInfo> iterator = mCache.values().iterator();
+        while (iterator.hasNext()) {
+            if (packageName.equals(iterator.next().packageName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Nullable
+    private String getCertificateDigest(@NonNull String packageName) {
+        try {
+            final PackageInfo info =
+                    mPackageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+            if (info.signatures == null || info.signatures.length != 1) {
+                // Only trust packages with exactly one signer.
+                return null;
+            }
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(info.signatures[0].toByteArray());
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "getCertificateDigest: Package not found: " + packageName);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -16,19 +16,61 @@
 
 package com.example.android.mediasession.service;
 
+import android.support.annotation.IntDef;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
 import com.example.android.mediasession.service.players.MediaPlayerAdapter;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
 /**
  * Listener to provide state updates from {@link MediaPlayerAdapter} (the media player)
  * to {@link MusicService} (the service that holds our {@link MediaSessionCompat}.
  */
 public abstract class PlaybackInfoListener {
 
+    // Phases of a play or seek operation, in the order the player goes through them.
+    public static final int PHASE_SOURCE_OPENED = 1;
+    public static final int PHASE_PREPARED = 2;
+    public static final int PHASE_STARTED = 3;
+    public static final int PHASE_SEEK_COMPLETED = 4;
+    public static final int PHASE_POSITION_ADVANCED = 5;
+
+    @IntDef({PHASE_SOURCE_OPENED, PHASE_PREPARED, PHASE_STARTED, PHASE_SEEK_COMPLETED,
+            PHASE_POSITION_ADVANCED})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Phase {
+    }
+
     public abstract void onPlaybackStateChange(PlaybackStateCompat state);
 
     public void onPlaybackCompleted() {
     }
-}
\ No newline at end of file
+
+    /**
+     * Called when the player released its resources after being paused for a while. The
+     * next play command prepares the media again at the same position.
+     */
+    public void onIdleResourcesReleased() {
+    }
+
+    /**
+     * Called when the current play or seek operation reaches {@code phase}, to measure its
+     * latency. {@link #PHASE_POSITION_ADVANCED} marks the first audio actually played.
+     *
+     * @param elapsedRealtimeMs When the phase was reached, in
+     *                          {@link android.os.SystemClock#elapsedRealtime()} time base.
+     */
+    public void onPlaybackPhase(@Phase int phase, long elapsedRealtimeMs) {
+    }
+
+    /**
+     * Returns whether {@link #PHASE_POSITION_ADVANCED} should be reported. Players have to
+     * poll the position to find it, so it is only reported when asked for.
+     */
+    public boolean isPositionAdvanceWanted() {
+        return false;
+    }
+}
@@ -22,7 +22,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
@@ -35,6 +38,11 @@ public abstract class PlayerAdapter {
     private static final float MEDIA_VOLUME_DEFAULT = 1.0f;
     private static final float MEDIA_VOLUME_DUCK = 0.2f;
 
+    // How often, and for how long, the position is polled to find when playback advances.
+    // Polling costs a call into the media server, so the resolution is kept coarse.
+    private static final long POSITION_POLL_INTERVAL_MS = 50;
+    private static final long POSITION_POLL_TIMEOUT_MS = 5000;
+
     private static final IntentFilter AUDIO_NOISY_INTENT_FILTER =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
 
@@ -54,10 +62,35 @@ public abstract class PlayerAdapter {
     private final Context mApplicationContext;
     private final AudioManager mAudioManager;
     private final AudioFocusHelper mAudioFocusHelper;
+    // Handler of the thread the player runs on, so that broadcasts are received there too.
+    private final Handler mHandler;
 
     private boolean mPlayOnAudioFocus = false;
+    private AudioFocusGroup mAudioFocusGroup;
+
+    // Pending report of PHASE_POSITION_ADVANCED, see watchForPositionAdvance().
+    private PlaybackInfoListener mAdvanceListener;
+    private long mAdvanceFromPosition;
+    private long mAdvanceDeadline;
+    private final Runnable mPositionAdvanceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long position = getCurrentPosition();
+            if (position > mAdvanceFromPosition) {
+                final PlaybackInfoListener listener = mAdvanceListener;
+                mAdvanceListener = null;
+                listener.onPlaybackPhase(PlaybackInfoListener.PHASE_POSITION_ADVANCED,
+                        SystemClock.elapsedRealtime());
+            } else if (SystemClock.elapsedRealtime() < mAdvanceDeadline) {
+                mHandler.postDelayed(this, POSITION_POLL_INTERVAL_MS);
+            } else {
+                mAdvanceListener = null;
+            }
+        }
+    };
 
     public PlayerAdapter(@NonNull Context context) {
+        mHandler = new Handler();
         mApplicationContext = context.getApplicationContext();
         mAudioManager = (AudioManager) mApplicationContext.getSystemService(Context.AUDIO_SERVICE);
         mAudioFocusHelper = new AudioFocusHelper();
@@ -65,12 +98,34 @@ public abstract class PlayerAdapter {
 
     public abstract void playFromMedia(MediaMetadataCompat metadata);
 
+    /**
+     * Starts playing {@code metadata} from the given position, for example when resuming a
+     * restored session. Players should override this to seek before playback starts.
+     */
+    public void playFromMedia(MediaMetadataCompat metadata, long startPosition) {
+        playFromMedia(metadata);
+        if (startPosition > 0) {
+            seekTo(startPosition);
+        }
+    }
+
     public abstract MediaMetadataCompat getCurrentMedia();
 
     public abstract boolean isPlaying();
 
+    /**
+     * Makes this player share audio focus with the other players of {@code group}, instead of
+     * requesting it on its own. Players that play to the same output at the same time must
+     * share focus, as they would otherwise pause each other.
+     *
+     * @param group The group to join, or null to request focus alone.
+     */
+    public void setAudioFocusGroup(@Nullable AudioFocusGroup group) {
+        mAudioFocusGroup = group;
+    }
+
     public final void play() {
-        if (mAudioFocusHelper.requestAudioFocus()) {
+        if (requestAudioFocus()) {
             registerAudioNoisyReceiver();
             onPlay();
         }
@@ -83,10 +138,11 @@ public abstract class PlayerAdapter {
 
     public final void pause() {
         if (!mPlayOnAudioFocus) {
-            mAudioFocusHelper.abandonAudioFocus();
+            abandonAudioFocus();
         }
 
         unregisterAudioNoisyReceiver();
+        cancelPositionAdvanceWatch();
         onPause();
     }
 
@@ -96,8 +152,9 @@ public abstract class PlayerAdapter {
     protected abstract void onPause();
 
     public final void stop() {
-        mAudioFocusHelper.abandonAudioFocus();
+        abandonAudioFocus();
         unregisterAudioNoisyReceiver();
+        cancelPositionAdvanceWatch();
         onStop();
     }
 
@@ -109,11 +166,113 @@ public abstract class PlayerAdapter {
 
     public abstract void seekTo(long position);
 
+    /**
+     * Called when the system asks the app to trim memory. Players should release whatever
+     * they can recreate, as long as they are not playing.
+     *
+     * @param level The trim level, see {@link android.content.ComponentCallbacks2}.
+     */
+    public void onTrimMemory(int level) {
+    }
+
+    /**
+     * Returns an estimate of the memory that {@link #onTrimMemory(int)} could release right
+     * now. May be called from any thread.
+     */
+    public long getResidentBytes() {
+        return 0;
+    }
+
     public abstract void setVolume(float volume);
 
+    /**
+     * Returns the current playback position, or -1 if it is unknown. Players that implement it
+     * can use {@link #watchForPositionAdvance(PlaybackInfoListener)}.
+     */
+    protected long getCurrentPosition() {
+        return -1;
+    }
+
+    /**
+     * Reports {@link PlaybackInfoListener#PHASE_POSITION_ADVANCED} to {@code listener} once the
+     * position moves past its current value, i.e. when audio is actually playing. Call after
+     * starting playback, or after a seek completed while playing. Does nothing unless
+     * {@link PlaybackInfoListener#isPositionAdvanceWanted()}.
+     */
+    protected final void watchForPositionAdvance(@NonNull PlaybackInfoListener listener) {
+        mHandler.removeCallbacks(mPositionAdvanceRunnable);
+        if (!listener.isPositionAdvanceWanted()) {
+            mAdvanceListener = null;
+            return;
+        }
+        mAdvanceListener = listener;
+        mAdvanceFromPosition = getCurrentPosition();
+        mAdvanceDeadline = SystemClock.elapsedRealtime() + POSITION_POLL_TIMEOUT_MS;
+        mHandler.postDelayed(mPositionAdvanceRunnable, POSITION_POLL_INTERVAL_MS);
+    }
+
+    private void cancelPositionAdvanceWatch() {
+        mHandler.removeCallbacks(mPositionAdvanceRunnable);
+        mAdvanceListener = null;
+    }
+
+    private boolean requestAudioFocus() {
+        return mAudioFocusGroup != null
+                ? mAudioFocusGroup.request(this)
+                : mAudioFocusHelper.requestAudioFocus();
+    }
+
+    private void abandonAudioFocus() {
+        if (mAudioFocusGroup != null) {
+            mAudioFocusGroup.abandon(this);
+        } else {
+            mAudioFocusHelper.abandonAudioFocus();
+        }
+    }
+
+    /**
+     * Handles a focus change of the {@link AudioFocusGroup} on the player's thread.
+     */
+    void postAudioFocusChange(final int focusChange) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onAudioFocusChange(focusChange);
+            }
+        });
+    }
+
+    private void onAudioFocusChange(int focusChange) {
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                if (mPlayOnAudioFocus && !isPlaying()) {
+                    play();
+                } else if (isPlaying()) {
+                    setVolume(MEDIA_VOLUME_DEFAULT);
+                }
+                mPlayOnAudioFocus = false;
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                setVolume(MEDIA_VOLUME_DUCK);
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                if (isPlaying()) {
+                    mPlayOnAudioFocus = true;
+                    pause();
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS:
+                abandonAudioFocus();
+                mPlayOnAudioFocus = false;
+                stop();
+                break;
+        }
+    }
+
     private void registerAudioNoisyReceiver() {
         if (!mAudioNoisyReceiverRegistered) {
-            mApplicationContext.registerReceiver(mAudioNoisyReceiver, AUDIO_NOISY_INTENT_FILTER);
+            mApplicationContext.registerReceiver(
+                    mAudioNoisyReceiver, AUDIO_NOISY_INTENT_FILTER, null, mHandler);
             mAudioNoisyReceiverRegistered = true;
         }
     }
@@ -144,30 +303,7 @@ public abstract class PlayerAdapter {
 
         @Override
         public void onAudioFocusChange(int focusChange) {
-            switch (focusChange) {
-                case AudioManager.AUDIOFOCUS_GAIN:
-                    if (mPlayOnAudioFocus && !isPlaying()) {
-                        play();
-                    } else if (isPlaying()) {
-                        setVolume(MEDIA_VOLUME_DEFAULT);
-                    }
-                    mPlayOnAudioFocus = false;
-                    break;
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    setVolume(MEDIA_VOLUME_DUCK);
-                    break;
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                    if (isPlaying()) {
-                        mPlayOnAudioFocus = true;
-                        pause();
-                    }
-                    break;
-                case AudioManager.AUDIOFOCUS_LOSS:
-                    mAudioManager.abandonAudioFocus(this);
-                    mPlayOnAudioFocus = false;
-                    stop();
-                    break;
-            }
+            PlayerAdapter.this.onAudioFocusChange(focusChange);
         }
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.BuildConfig;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Serves the album art of the catalog as JPEG files, scaled to the size asked for by the
+ * client.
+ * <p>
+ * URIs have the form {@code content://<authority>/<mediaId>?size=<pixels>}, see
+ * {@link #buildUri(String, int)}. The size is the longest edge the client needs. It is
+ * rounded up to a power of two, so that clients asking for similar sizes share an entry. Each
+ * encoded size is kept in a disk cache shared by all tracks with the same art. Clients read
+ * it directly from the file descriptor, so the bitmap never travels over Binder.
+ * <p>
+ * Other apps need a grant from {@link #grantReadAccess(Context, String)}.
+ */
+public class AlbumArtProvider extends ContentProvider {
+
+    private static final String TAG = AlbumArtProvider.class.getSimpleName();
+
+    public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".albumart";
+    public static final String QUERY_SIZE = "size";
+
+    // Size served when the URI doesn't ask for one.
+    private static final int DEFAULT_SIZE = 512;
+    private static final int MIN_SIZE = 64;
+    private static final int MAX_SIZE = 1024;
+
+    private static final String CACHE_DIR = "albumart";
+    private static final long MAX_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Returns the URI of the art of {@code mediaId}, or of its default size if {@code size} is
+     * not positive.
+     */
+    public static Uri buildUri(@NonNull String mediaId, int size) {
+        final Uri.Builder builder = new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(mediaId);
+        if (size > 0) {
+            builder.appendQueryParameter(QUERY_SIZE, String.valueOf(size));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns {@code uri} with its size replaced by {@code size}, if it is an art URI of this
+     * provider, and {@code uri} unchanged otherwise.
+     */
+    public static Uri withSize(@NonNull Uri uri, int size) {
+        if (!AUTHORITY.equals(uri.getAuthority()) || uri.getPathSegments().size() != 1) {
+            return uri;
+        }
+        return buildUri(uri.getPathSegments().get(0), size);
+    }
+
+    /**
+     * Lets {@code packageName} read the art of every track. The provider isn't exported, so
+     * that only callers the service trusts can read it and fill its cache. Granting a URI
+     * prefix needs API 21; before that, only the app itself reads the art.
+     */
+    public static void grantReadAccess(@NonNull Context context, @NonNull String packageName) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                || context.getPackageName().equals(packageName)) {
+            return;
+        }
+        final Uri root = new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .build();
+        context.grantUriPermission(packageName, root,
+                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PREFIX_URI_PERMISSION);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Album art is read only: " + uri);
+        }
+        if (uri.getPathSegments().size() != 1) {
+            throw new FileNotFoundException("Not an album art URI: " + uri);
+        }
+        final String mediaId = uri.getPathSegments().get(0);
+        final String artName = MusicLibrary.getAlbumArtName(getContext(), mediaId);
+        if (artName == null) {
+            throw new FileNotFoundException("No album art for " + mediaId);
+        }
+        final int size = getBucketSize(uri.getQueryParameter(QUERY_SIZE));
+        final File file = getCachedFile(mediaId, artName, size);
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    private static int getBucketSize(@Nullable String sizeParameter) {
+        int size = DEFAULT_SIZE;
+        if (sizeParameter != null) {
+            try {
+                size = Integer.parseInt(sizeParameter);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "getBucketSize: Invalid size " + sizeParameter);
+            }
+        }
+        int bucket = MIN_SIZE;
+        while (bucket < size && bucket < MAX_SIZE) {
+            bucket *= 2;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the cache file of the art at the given size, encoding it first if needed.
+     * Encoding is serialized, so concurrent requests for the same art only encode it once.
+     */
+    private synchronized File getCachedFile(String mediaId, String artName, int size)
+            throws FileNotFoundException {
+        final File dir = new File(getContext().getCacheDir(), CACHE_DIR);
+        // The version code is part of the name, since an update may change the art.
+        final File file = new File(dir,
+                artName + '_' + size + '_' + BuildConfig.VERSION_CODE + ".jpg");
+        if (file.exists()) {
+            // Keeps recently used entries when the cache is trimmed.
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        final Bitmap bitmap = MusicLibrary.getAlbumBitmap(getContext(), mediaId, size, size);
+        if (bitmap == null) {
+            throw new FileNotFoundException("Failed to decode album art of " + mediaId);
+        }
+        final Bitmap scaled = scale(bitmap, size);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new FileNotFoundException("Failed to create " + dir);
+        }
+        // Written to a temporary file first, so that a reader never sees a partial file.
+        final File tmpFile = new File(dir, file.getName() + ".tmp");
+        try {
+            final FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new FileNotFoundException("Failed to write " + tmpFile + ": " + e);
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new FileNotFoundException("Failed to write " + file);
+        }
+        trimCache(dir);
+        return file;
+    }
+
+    private static Bitmap scale(@NonNull Bitmap bitmap, int size) {
+        final int longestEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longestEdge <= size) {
+            return bitmap;
+        }
+        final float scale = (float) size / longestEdge;
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)),
+                true);
+    }
+
+    /**
+     * Deletes the least recently used entries while the cache is larger than its limit.
+     */
+    private static void trimCache(@NonNull File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= MAX_CACHE_BYTES) {
+                break;
+            }
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return "image/jpeg";
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.List;
+
+/**
+ * A source of tracks merged into the {@link MusicLibrary} catalog, next to the bundled ones.
+ * <p>
+ * Each source is loaded on its own background thread, and hands its tracks over in batches as
+ * they are read, so that a slow source never holds back the others. A track is a
+ * {@link MediaMetadataCompat} with at least:
+ * <ul>
+ * <li>{@link MediaMetadataCompat#METADATA_KEY_MEDIA_ID}, unique across sources; prefix it with
+ * {@link #getName()}.</li>
+ * <li>{@link MediaMetadataCompat#METADATA_KEY_MEDIA_URI}, the URI the player opens.</li>
+ * <li>{@link MediaMetadataCompat#METADATA_KEY_TITLE}, and if known the artist, album and
+ * duration, which identify the same content in several sources.</li>
+ * </ul>
+ */
+public interface CatalogSource {
+
+    /**
+     * Receives the tracks of a source. May be called from any thread.
+     */
+    interface Callback {
+        void onTracksLoaded(@NonNull CatalogSource source,
+                            @NonNull List<MediaMetadataCompat> tracks);
+
+        void onTracksRemoved(@NonNull CatalogSource source, @NonNull List<String> mediaIds);
+    }
+
+    /**
+     * Returns a short name of the source, used in logs and as prefix of its media IDs.
+     */
+    @NonNull
+    String getName();
+
+    /**
+     * Loads the tracks of the source, passing them to {@code callback} in batches. Called on a
+     * background thread; blocking I/O is fine. A source that keeps watching for changes may
+     * report added and removed tracks later, until {@link #release()}.
+     */
+    void load(@NonNull Context context, @NonNull Callback callback) throws Exception;
+
+    /**
+     * Stops watching for changes. The source isn't used after this.
+     */
+    void release();
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks of a remote catalog, a JSON document of the form:
+ * <pre>
+ * {"music": [{"id": "...", "title": "...", "artist": "...", "album": "...", "genre": "...",
+ *             "source": "track.mp3", "image": "art.jpg", "duration": 103}, ...]}
+ * </pre>
+ * where {@code source} and {@code image} may be relative to the catalog URL, and the duration
+ * is in seconds. The document is parsed as it downloads, and the tracks are handed over in
+ * batches.
+ */
+public class HttpCatalogSource implements CatalogSource {
+
+    private static final String NAME = "http";
+    private static final int BATCH_SIZE = 50;
+    private static final int CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final URL mCatalogUrl;
+
+    public HttpCatalogSource(@NonNull URL catalogUrl) {
+        mCatalogUrl = catalogUrl;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void load(@NonNull Context context, @NonNull Callback callback) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) mCatalogUrl.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Catalog request failed: " + connection.getResponseCode()
+                        + " " + connection.getResponseMessage());
+            }
+            final JsonReader reader = new JsonReader(
+                    new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("music".equals(reader.nextName())) {
+                        readTracks(reader, callback);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void readTracks(@NonNull JsonReader reader, @NonNull Callback callback)
+            throws IOException {
+        List<MediaMetadataCompat> batch = new ArrayList<>(BATCH_SIZE);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            final MediaMetadataCompat track = readTrack(reader);
+            if (track != null) {
+                batch.add(track);
+            }
+            if (batch.size() == BATCH_SIZE) {
+                callback.onTracksLoaded(this, batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        reader.endArray();
+        if (!batch.isEmpty()) {
+            callback.onTracksLoaded(this, batch);
+        }
+    }
+
+    private MediaMetadataCompat readTrack(@NonNull JsonReader reader) throws IOException {
+        final MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        String id = null;
+        String source = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = reader.nextString();
+                    break;
+                case "title":
+                    builder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, reader.nextString());
+                    break;
+                case "artist":
+                    builder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, reader.nextString());
+                    break;
+                case "album":
+                    builder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM, reader.nextString());
+                    break;
+                case "genre":
+                    builder.putString(MediaMetadataCompat.METADATA_KEY_GENRE, reader.nextString());
+                    break;
+                case "source":
+                    source = resolve(reader.nextString());
+                    break;
+                case "image":
+                    final String image = resolve(reader.nextString());
+                    builder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, image);
+                    builder.putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, image);
+                    break;
+                case "duration":
+                    builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
+                            TimeUnit.SECONDS.toMillis(reader.nextLong()));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (id == null || source == null) {
+            return null;
+        }
+        return builder
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, NAME + ':' + id)
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI, source)
+                .build();
+    }
+
+    private String resolve(@NonNull String url) throws IOException {
+        return new URL(mCatalogUrl, url).toString();
+    }
+
+    @Override
+    public void release() {
+    }
+}
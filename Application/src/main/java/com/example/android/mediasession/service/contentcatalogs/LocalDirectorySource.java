@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Environment;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tracks read from the audio files in a local directory and its subdirectories, by default
+ * the app's external music directory, which needs no permission. The tags of each file are
+ * read with {@link MediaMetadataRetriever}, and the tracks are handed over in batches.
+ */
+public class LocalDirectorySource implements CatalogSource {
+
+    private static final String TAG = LocalDirectorySource.class.getSimpleName();
+
+    private static final String NAME = "dir";
+    private static final int BATCH_SIZE = 25;
+    private static final String[] EXTENSIONS = {".mp3", ".m4a", ".aac", ".ogg", ".flac", ".wav"};
+
+    private File mDirectory;
+
+    /**
+     * @param directory Directory to read, or null for the app's external music directory.
+     */
+    public LocalDirectorySource(@Nullable File directory) {
+        mDirectory = directory;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void load(@NonNull Context context, @NonNull Callback callback) {
+        if (mDirectory == null) {
+            mDirectory = context.getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+            if (mDirectory == null) {
+                Log.i(TAG, "load: External storage isn't available");
+                return;
+            }
+        }
+        final List<MediaMetadataCompat> batch = new ArrayList<>(BATCH_SIZE);
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            scan(mDirectory, retriever, batch, callback);
+        } finally {
+            retriever.release();
+        }
+        if (!batch.isEmpty()) {
+            callback.onTracksLoaded(this, batch);
+        }
+    }
+
+    private void scan(@NonNull File directory,
+                      @NonNull MediaMetadataRetriever retriever,
+                      @NonNull List<MediaMetadataCompat> batch,
+                      @NonNull Callback callback) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                scan(file, retriever, batch, callback);
+            } else if (isAudioFile(file)) {
+                final MediaMetadataCompat track = read(file, retriever);
+                if (track != null) {
+                    batch.add(track);
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    callback.onTracksLoaded(this, new ArrayList<>(batch));
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private static boolean isAudioFile(@NonNull File file) {
+        final String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MediaMetadataCompat read(@NonNull File file,
+                                     @NonNull MediaMetadataRetriever retriever) {
+        try {
+            retriever.setDataSource(file.getPath());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "read: Skipping unreadable file " + file, e);
+            return null;
+        }
+        final String path = mDirectory.toURI().relativize(file.toURI()).getPath();
+        String title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+        if (title == null) {
+            title = file.getName();
+        }
+        final String duration =
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+        final MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, NAME + ':' + path)
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI,
+                        Uri.fromFile(file).toString())
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_ARTIST))
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_ALBUM))
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_GENRE));
+        if (duration != null) {
+            try {
+                builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
+                        Long.parseLong(duration));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "read: Invalid duration of " + file + ": " + duration);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks of the device's music library, from {@link MediaStore}. Needs the
+ * {@link Manifest.permission#READ_EXTERNAL_STORAGE} permission; without it the source is
+ * empty.
+ * <p>
+ * The library is read once with a single query, and then kept in sync with a
+ * {@link ContentObserver}. Each row's {@code DATE_MODIFIED} is remembered as its version,
+ * since MediaStore generations need API 30. When the change notification names rows, only
+ * those rows are queried again. Otherwise the IDs and versions of all rows are compared with
+ * the known ones, and only the added and modified rows are read in full. Notifications are
+ * coalesced for a short delay, so that a media scan reads its new rows in a few queries.
+ */
+public class MediaStoreSource implements CatalogSource {
+
+    private static final String TAG = MediaStoreSource.class.getSimpleName();
+
+    private static final String NAME = "mediastore";
+    private static final int BATCH_SIZE = 100;
+    private static final long SYNC_DELAY_MS = 250;
+    // Maximum number of IDs in one "_id IN (...)" selection.
+    private static final int MAX_SELECTION_IDS = 500;
+    private static final Uri CONTENT_URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+    private static final String SELECTION_MUSIC = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DURATION
+    };
+    private static final String[] VERSION_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_DATE_MODIFIED = 1;
+    private static final int COLUMN_TITLE = 2;
+    private static final int COLUMN_ARTIST = 3;
+    private static final int COLUMN_ALBUM = 4;
+    private static final int COLUMN_ALBUM_ID = 5;
+    private static final int COLUMN_DURATION = 6;
+
+    private ContentResolver mContentResolver;
+    private Callback mCallback;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ContentObserver mObserver;
+
+    // Versions of the known rows: written by the initial load, then only on mThread.
+    private final Map<Long, Long> mVersions = new HashMap<>();
+    // Sync state, only used on mThread.
+    private final Set<Long> mPendingIds = new HashSet<>();
+    private boolean mPendingFullSync;
+    private boolean mLoaded;
+    private volatile boolean mReleased;
+    private volatile boolean mMissingPermission;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Returns whether the last load found no permission to read the library. The source
+     * doesn't ask again; load a new instance once the permission is granted.
+     */
+    public boolean isMissingPermission() {
+        return mMissingPermission;
+    }
+
+    @Override
+    public void load(@NonNull Context context, @NonNull Callback callback) {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.i(TAG, "load: No permission to read the music library");
+            mMissingPermission = true;
+            return;
+        }
+        mContentResolver = context.getContentResolver();
+        mCallback = callback;
+
+        // Observe before the initial query, so that no change is missed. Changes noted in
+        // the meantime are synced once the initial load is done.
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mThread = new HandlerThread("MediaStoreSource", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            mObserver = new ContentObserver(mHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, @Nullable Uri uri) {
+                    scheduleSync(uri);
+                }
+            };
+            mContentResolver.registerContentObserver(CONTENT_URI, true, mObserver);
+        }
+
+        try {
+            loadAll(callback);
+        } finally {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mLoaded = true;
+                    if (mPendingFullSync || !mPendingIds.isEmpty()) {
+                        sync();
+                    }
+                }
+            });
+        }
+    }
+
+    private void loadAll(@NonNull Callback callback) {
+        final Cursor cursor = mContentResolver.query(
+                CONTENT_URI, PROJECTION, SELECTION_MUSIC, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            List<MediaMetadataCompat> batch = new ArrayList<>(BATCH_SIZE);
+            while (cursor.moveToNext()) {
+                batch.add(readTrack(cursor));
+                if (batch.size() == BATCH_SIZE) {
+                    callback.onTracksLoaded(this, batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                callback.onTracksLoaded(this, batch);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads a row of {@link #PROJECTION}, and remembers its version.
+     */
+    private MediaMetadataCompat readTrack(@NonNull Cursor cursor) {
+        final long id = cursor.getLong(COLUMN_ID);
+        mVersions.put(id, cursor.getLong(COLUMN_DATE_MODIFIED));
+        final String albumArtUri = ContentUris.withAppendedId(
+                ALBUM_ART_URI, cursor.getLong(COLUMN_ALBUM_ID)).toString();
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, getMediaId(id))
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI,
+                        ContentUris.withAppendedId(CONTENT_URI, id).toString())
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, cursor.getString(COLUMN_TITLE))
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST,
+                        cursor.getString(COLUMN_ARTIST))
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, cursor.getString(COLUMN_ALBUM))
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
+                        cursor.getLong(COLUMN_DURATION))
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, albumArtUri)
+                .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, albumArtUri)
+                .build();
+    }
+
+    private static String getMediaId(long id) {
+        return NAME + ':' + id;
+    }
+
+    /**
+     * Notes what changed, and syncs after a short delay. Runs on the sync thread.
+     */
+    private void scheduleSync(@Nullable Uri uri) {
+        final long id = uri != null ? parseId(uri) : -1;
+        if (id >= 0) {
+            mPendingIds.add(id);
+        } else {
+            mPendingFullSync = true;
+        }
+        if (mLoaded) {
+            mHandler.removeCallbacks(mSyncRunnable);
+            mHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MS);
+        }
+    }
+
+    /**
+     * Returns the ID of the row that {@code uri} points to, or -1 if it isn't a single track.
+     */
+    private static long parseId(@NonNull Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        final List<String> contentSegments = CONTENT_URI.getPathSegments();
+        if (!TextUtils.equals(uri.getAuthority(), CONTENT_URI.getAuthority())
+                || segments.size() != contentSegments.size() + 1
+                || !segments.subList(0, contentSegments.size()).equals(contentSegments)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(segments.size() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void sync() {
+        if (mReleased) {
+            return;
+        }
+        final Set<Long> readIds = new HashSet<>();
+        final List<String> removedIds = new ArrayList<>();
+        if (mPendingFullSync) {
+            diffVersions(readIds, removedIds);
+        } else {
+            readIds.addAll(mPendingIds);
+        }
+        mPendingIds.clear();
+        mPendingFullSync = false;
+
+        final List<MediaMetadataCompat> tracks = readTracks(readIds);
+        for (MediaMetadataCompat track : tracks) {
+            readIds.remove(parseMediaId(track));
+        }
+        // Rows named by a notification that can't be read anymore were deleted.
+        for (Long id : readIds) {
+            if (mVersions.remove(id) != null) {
+                removedIds.add(getMediaId(id));
+            }
+        }
+
+        Log.d(TAG, "sync: " + tracks.size() + " added or changed, "
+                + removedIds.size() + " removed");
+        if (!tracks.isEmpty()) {
+            mCallback.onTracksLoaded(this, tracks);
+        }
+        if (!removedIds.isEmpty()) {
+            mCallback.onTracksRemoved(this, removedIds);
+        }
+    }
+
+    /**
+     * Compares the versions of all rows with the known ones. Collects the IDs of added and
+     * modified rows in {@code changedIds}, and the media IDs of removed rows in
+     * {@code removedIds}.
+     */
+    private void diffVersions(@NonNull Set<Long> changedIds, @NonNull List<String> removedIds) {
+        final Cursor cursor = mContentResolver.query(
+                CONTENT_URI, VERSION_PROJECTION, SELECTION_MUSIC, null, null);
+        if (cursor == null) {
+            return;
+        }
+        final Set<Long> removed = new HashSet<>(mVersions.keySet());
+        try {
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(COLUMN_ID);
+                final Long version = mVersions.get(id);
+                if (version == null || version != cursor.getLong(COLUMN_DATE_MODIFIED)) {
+                    changedIds.add(id);
+                }
+                removed.remove(id);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Long id : removed) {
+            mVersions.remove(id);
+            removedIds.add(getMediaId(id));
+        }
+    }
+
+    /**
+     * Reads the rows with the given IDs that are still music.
+     */
+    private List<MediaMetadataCompat> readTracks(@NonNull Set<Long> ids) {
+        final List<MediaMetadataCompat> tracks = new ArrayList<>(ids.size());
+        final List<Long> remaining = new ArrayList<>(ids);
+        while (!remaining.isEmpty()) {
+            final List<Long> chunk =
+                    remaining.subList(0, Math.min(MAX_SELECTION_IDS, remaining.size()));
+            final Cursor cursor = mContentResolver.query(CONTENT_URI, PROJECTION,
+                    SELECTION_MUSIC + " AND " + MediaStore.Audio.Media._ID
+                            + " IN (" + TextUtils.join(",", chunk) + ")",
+                    null, null);
+            chunk.clear();
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    tracks.add(readTrack(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return tracks;
+    }
+
+    private static Long parseMediaId(@NonNull MediaMetadataCompat track) {
+        final String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        return Long.parseLong(mediaId.substring(NAME.length() + 1));
+    }
+
+    @Override
+    public synchronized void release() {
+        mReleased = true;
+        if (mObserver != null) {
+            mContentResolver.unregisterContentObserver(mObserver);
+            mObserver = null;
+            mThread.quitSafely();
+        }
+    }
+}
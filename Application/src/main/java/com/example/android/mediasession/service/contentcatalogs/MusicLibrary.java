@@ -16,12 +16,20 @@
 
 package com.example.android.mediasession.service.contentcatalogs;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
 
 import com.example.android.mediasession.BuildConfig;
 import com.example.android.mediasession.R;
@@ -29,56 +37,331 @@ import com.example.android.mediasession.R;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class MusicLibrary {
 
-    private static final TreeMap<String, MediaMetadataCompat> music = new TreeMap<>();
-    private static final HashMap<String, Integer> albumRes = new HashMap<>();
-    private static final HashMap<String, String> musicFileName = new HashMap<>();
-
-    static {
-        createMediaMetadataCompat(
-                "Jazz_In_Paris",
-                "Jazz in Paris",
-                "Media Right Productions",
-                "Jazz & Blues",
-                "Jazz",
-                103,
-                TimeUnit.SECONDS,
-                "jazz_in_paris.mp3",
-                R.drawable.album_jazz_blues,
-                "album_jazz_blues");
-        createMediaMetadataCompat(
-                "The_Coldest_Shoulder",
-                "The Coldest Shoulder",
-                "The 126ers",
-                "Youtube Audio Library Rock 2",
-                "Rock",
-                160,
-                TimeUnit.SECONDS,
-                "the_coldest_shoulder.mp3",
-                R.drawable.album_youtube_audio_library_rock_2,
-                "album_youtube_audio_library_rock_2");
+    private static final String TAG = MusicLibrary.class.getSimpleName();
+
+    /**
+     * Receives changes of the catalog made by a {@link CatalogSource}. Called on the thread of
+     * the source.
+     */
+    public interface Listener {
+        void onCatalogChanged();
+
+        /**
+         * Called after a source removed tracks from the catalog, with their media IDs, so that
+         * they can be dropped from play queues. Followed by {@link #onCatalogChanged()}.
+         */
+        void onTracksRemoved(@NonNull List<String> mediaIds);
+
+        /**
+         * Called once every source finished its initial load, successfully or not. Sources
+         * may still report changes afterwards.
+         */
+        void onSourcesLoaded();
+    }
+
+    /**
+     * Indexes of the catalog. They are built the first time they are used rather than when
+     * {@link MusicLibrary} is loaded, so that {@link #getRoot()} stays cheap while the service
+     * starts up.
+     * <p>
+     * The bundled tracks are added right away; tracks of other sources are merged in later
+     * from their loading threads, under {@link #lock}. Readers don't lock.
+     */
+    private static class Catalog {
+        static final Object lock = new Object();
+
+        // Tracks shown in the catalog, and how to play and illustrate them.
+        static final Map<String, MediaMetadataCompat> music = new ConcurrentSkipListMap<>();
+        static final Map<String, Integer> albumRes = new ConcurrentHashMap<>();
+        static final Map<String, String> musicFileName = new ConcurrentHashMap<>();
+        static final Map<String, String> mediaUri = new ConcurrentHashMap<>();
+
+        // Deduplication, guarded by lock. All tracks with the same content key are candidates
+        // for the same entry; the one of the source with the lowest rank is shown. Bundled
+        // tracks have rank 0.
+        static final HashMap<String, TreeMap<Integer, MediaMetadataCompat>> candidates =
+                new HashMap<>();
+        static final HashMap<String, String> contentKeys = new HashMap<>();
+        static final HashMap<String, Integer> ranks = new HashMap<>();
+
+        static {
+            TraceCompat.beginSection("MusicLibrary.buildCatalog");
+            try {
+                createMediaMetadataCompat(
+                        "Jazz_In_Paris",
+                        "Jazz in Paris",
+                        "Media Right Productions",
+                        "Jazz & Blues",
+                        "Jazz",
+                        103,
+                        TimeUnit.SECONDS,
+                        "jazz_in_paris.mp3",
+                        R.drawable.album_jazz_blues);
+                createMediaMetadataCompat(
+                        "The_Coldest_Shoulder",
+                        "The Coldest Shoulder",
+                        "The 126ers",
+                        "Youtube Audio Library Rock 2",
+                        "Rock",
+                        160,
+                        TimeUnit.SECONDS,
+                        "the_coldest_shoulder.mp3",
+                        R.drawable.album_youtube_audio_library_rock_2);
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
     }
 
     public static String getRoot() {
         return "root";
     }
 
-    private static String getAlbumArtUri(String albumArtResName) {
-        return ContentResolver.SCHEME_ANDROID_RESOURCE + "://" +
-                BuildConfig.APPLICATION_ID + "/drawable/" + albumArtResName;
+    private static String getAlbumArtUri(String mediaId) {
+        return AlbumArtProvider.buildUri(mediaId, 0).toString();
     }
 
+    /**
+     * Returns the name of the asset file of a bundled track, or null for tracks of other
+     * sources, which are played from {@link #getMediaUri(String)}.
+     */
     public static String getMusicFilename(String mediaId) {
-        return musicFileName.containsKey(mediaId) ? musicFileName.get(mediaId) : null;
+        return Catalog.musicFileName.containsKey(mediaId)
+                ? Catalog.musicFileName.get(mediaId)
+                : null;
+    }
+
+    /**
+     * Returns the URI of a track of a {@link CatalogSource}, or null for bundled tracks.
+     */
+    public static Uri getMediaUri(String mediaId) {
+        final String uri = Catalog.mediaUri.get(mediaId);
+        return uri != null ? Uri.parse(uri) : null;
+    }
+
+    /**
+     * Starts loading {@code sources}, each on its own background thread. Their tracks are
+     * merged into the catalog as they arrive, and {@code listener} is told after each batch
+     * that changed it.
+     * <p>
+     * When the same content is in several sources, by title, artist and album, only the track
+     * of the earliest source in {@code sources} is shown; bundled tracks come first.
+     */
+    public static void loadSources(@NonNull Context context,
+                                   @NonNull List<CatalogSource> sources,
+                                   @NonNull final Listener listener) {
+        final Context appContext = context.getApplicationContext();
+        if (sources.isEmpty()) {
+            listener.onSourcesLoaded();
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(sources.size());
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        for (int i = 0; i < sources.size(); i++) {
+            loadSource(appContext, executor, sources.get(i), i + 1, listener, remaining);
+        }
+        // The threads end once their source is loaded.
+        executor.shutdown();
+    }
+
+    /**
+     * Loads {@code source} in place of the source at {@code index} of the list given to
+     * {@link #loadSources(Context, List, Listener)}, for example once a permission it needs
+     * was granted. Its tracks take the rank of that position. {@code listener} is not told
+     * {@link Listener#onSourcesLoaded()} again.
+     */
+    public static void reloadSource(@NonNull Context context,
+                                    int index,
+                                    @NonNull CatalogSource source,
+                                    @NonNull Listener listener) {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        loadSource(context.getApplicationContext(), executor, source, index + 1, listener, null);
+        executor.shutdown();
+    }
+
+    private static void loadSource(@NonNull final Context appContext,
+                                   @NonNull ExecutorService executor,
+                                   @NonNull final CatalogSource source,
+                                   final int rank,
+                                   @NonNull final Listener listener,
+                                   @Nullable final AtomicInteger remaining) {
+        final CatalogSource.Callback callback = new CatalogSource.Callback() {
+            @Override
+            public void onTracksLoaded(@NonNull CatalogSource source,
+                                       @NonNull List<MediaMetadataCompat> tracks) {
+                if (addTracks(rank, tracks)) {
+                    listener.onCatalogChanged();
+                }
+            }
+
+            @Override
+            public void onTracksRemoved(@NonNull CatalogSource source,
+                                        @NonNull List<String> mediaIds) {
+                final List<String> removed = removeTracks(mediaIds);
+                if (!removed.isEmpty()) {
+                    listener.onTracksRemoved(removed);
+                    listener.onCatalogChanged();
+                }
+            }
+        };
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    source.load(appContext, callback);
+                    Log.i(TAG, "loadSource: Loaded " + source.getName() + " in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (Exception e) {
+                    Log.w(TAG, "loadSource: Failed to load " + source.getName(), e);
+                } finally {
+                    if (remaining != null && remaining.decrementAndGet() == 0) {
+                        listener.onSourcesLoaded();
+                    }
+                }
+            }
+        });
+    }
+
+    private static boolean addTracks(int rank, @NonNull List<MediaMetadataCompat> tracks) {
+        boolean changed = false;
+        synchronized (Catalog.lock) {
+            for (MediaMetadataCompat track : tracks) {
+                changed |= addTrack(rank, track);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes tracks, and returns the IDs of those that were in the catalog.
+     */
+    private static List<String> removeTracks(@NonNull List<String> mediaIds) {
+        final List<String> removed = new ArrayList<>();
+        synchronized (Catalog.lock) {
+            for (String mediaId : mediaIds) {
+                if (Catalog.contentKeys.containsKey(mediaId)) {
+                    removeTrack(mediaId);
+                    removed.add(mediaId);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Adds or updates a track, and shows it unless a source of lower rank has the same
+     * content. Returns whether the shown tracks changed. Must hold {@link Catalog#lock}.
+     */
+    private static boolean addTrack(int rank, @NonNull MediaMetadataCompat track) {
+        final String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        boolean changed = removeTrack(mediaId);
+
+        final String contentKey = getContentKey(track);
+        TreeMap<Integer, MediaMetadataCompat> candidates = Catalog.candidates.get(contentKey);
+        if (candidates == null) {
+            candidates = new TreeMap<>();
+            Catalog.candidates.put(contentKey, candidates);
+        }
+        final Map.Entry<Integer, MediaMetadataCompat> shown = candidates.firstEntry();
+        final MediaMetadataCompat replaced = candidates.put(rank, track);
+        if (replaced != null) {
+            // The same content twice in one source: keep the latest.
+            final String replacedId =
+                    replaced.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            Catalog.contentKeys.remove(replacedId);
+            Catalog.ranks.remove(replacedId);
+            changed |= hide(replacedId);
+        }
+        Catalog.contentKeys.put(mediaId, contentKey);
+        Catalog.ranks.put(mediaId, rank);
+
+        if (shown == null || rank <= shown.getKey()) {
+            if (shown != null) {
+                changed |= hide(
+                        shown.getValue().getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+            }
+            show(track);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Removes a track, and shows the next candidate with the same content if it was shown.
+     * Returns whether the shown tracks changed. Must hold {@link Catalog#lock}.
+     */
+    private static boolean removeTrack(@NonNull String mediaId) {
+        final String contentKey = Catalog.contentKeys.remove(mediaId);
+        if (contentKey == null) {
+            return false;
+        }
+        final Integer rank = Catalog.ranks.remove(mediaId);
+        final TreeMap<Integer, MediaMetadataCompat> candidates =
+                Catalog.candidates.get(contentKey);
+        candidates.remove(rank);
+        final boolean wasShown = hide(mediaId);
+        if (candidates.isEmpty()) {
+            Catalog.candidates.remove(contentKey);
+        } else if (wasShown) {
+            show(candidates.firstEntry().getValue());
+        }
+        return wasShown;
+    }
+
+    private static void show(@NonNull MediaMetadataCompat track) {
+        final String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        final String uri = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI);
+        if (uri != null) {
+            Catalog.mediaUri.put(mediaId, uri);
+        }
+        Catalog.music.put(mediaId, track);
+    }
+
+    private static boolean hide(@NonNull String mediaId) {
+        Catalog.mediaUri.remove(mediaId);
+        return Catalog.music.remove(mediaId) != null;
+    }
+
+    /**
+     * Returns the identity of the content of a track, shared by copies of the same song in
+     * different sources.
+     */
+    private static String getContentKey(@NonNull MediaMetadataCompat track) {
+        return normalize(track.getString(MediaMetadataCompat.METADATA_KEY_TITLE)) + '\n'
+                + normalize(track.getString(MediaMetadataCompat.METADATA_KEY_ARTIST)) + '\n'
+                + normalize(track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
+    }
+
+    private static String normalize(String value) {
+        return value != null ? value.trim().toLowerCase(Locale.ROOT) : "";
     }
 
     private static int getAlbumRes(String mediaId) {
-        return albumRes.containsKey(mediaId) ? albumRes.get(mediaId) : 0;
+        return Catalog.albumRes.containsKey(mediaId) ? Catalog.albumRes.get(mediaId) : 0;
+    }
+
+    /**
+     * Returns a name of the album art of {@code mediaId} that is shared by all tracks with the
+     * same art and stable across builds, or null if the track has no art.
+     */
+    public static String getAlbumArtName(Context context, String mediaId) {
+        final int resId = getAlbumRes(mediaId);
+        return resId != 0 ? context.getResources().getResourceEntryName(resId) : null;
     }
 
     public static Bitmap getAlbumBitmap(Context context, String mediaId) {
@@ -86,9 +369,29 @@ public class MusicLibrary {
                 MusicLibrary.getAlbumRes(mediaId));
     }
 
+    /**
+     * Decodes the album art for {@code mediaId}, subsampled so that it is not much larger than
+     * the requested size. This does disk I/O and should not be called on the main thread.
+     */
+    public static Bitmap getAlbumBitmap(Context context, String mediaId,
+                                        int reqWidth, int reqHeight) {
+        final int resId = MusicLibrary.getAlbumRes(mediaId);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(context.getResources(), resId, options);
+
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= reqWidth
+                && options.outHeight / (options.inSampleSize * 2) >= reqHeight) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeResource(context.getResources(), resId, options);
+    }
+
     public static List<MediaBrowserCompat.MediaItem> getMediaItems() {
         List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
-        for (MediaMetadataCompat metadata : music.values()) {
+        for (MediaMetadataCompat metadata : Catalog.music.values()) {
             result.add(
                     new MediaBrowserCompat.MediaItem(
                             metadata.getDescription(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
@@ -96,9 +399,36 @@ public class MusicLibrary {
         return result;
     }
 
+    /**
+     * Returns whether all of {@code mediaIds} are in the catalog.
+     */
+    public static boolean containsAll(@NonNull List<String> mediaIds) {
+        for (String mediaId : mediaIds) {
+            if (!Catalog.music.containsKey(mediaId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static MediaDescriptionCompat getDescription(String mediaId) {
+        final MediaMetadataCompat metadata = Catalog.music.get(mediaId);
+        return metadata != null ? metadata.getDescription() : null;
+    }
+
+    /**
+     * Returns the metadata of {@code mediaId} for the session. The album art is embedded as a
+     * bitmap, unless the app is built with {@code -PartUrisOnly=true}: controllers then only
+     * get the {@link AlbumArtProvider} URIs, and load the art at the size they need.
+     *
+     * @return The metadata, or null if the track is no longer in the catalog.
+     */
+    @Nullable
     public static MediaMetadataCompat getMetadata(Context context, String mediaId) {
-        MediaMetadataCompat metadataWithoutBitmap = music.get(mediaId);
-        Bitmap albumArt = getAlbumBitmap(context, mediaId);
+        MediaMetadataCompat metadataWithoutBitmap = Catalog.music.get(mediaId);
+        if (metadataWithoutBitmap == null) {
+            return null;
+        }
 
         // Since MediaMetadataCompat is immutable, we need to create a copy to set the album art.
         // We don't set it initially on all items so that they don't take unnecessary memory.
@@ -109,17 +439,54 @@ public class MusicLibrary {
                         MediaMetadataCompat.METADATA_KEY_ALBUM,
                         MediaMetadataCompat.METADATA_KEY_ARTIST,
                         MediaMetadataCompat.METADATA_KEY_GENRE,
-                        MediaMetadataCompat.METADATA_KEY_TITLE
+                        MediaMetadataCompat.METADATA_KEY_TITLE,
+                        MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
+                        MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI
                 }) {
             builder.putString(key, metadataWithoutBitmap.getString(key));
         }
         builder.putLong(
                 MediaMetadataCompat.METADATA_KEY_DURATION,
                 metadataWithoutBitmap.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
-        builder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt);
+        if (BuildConfig.EMBED_ALBUM_ART) {
+            builder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART,
+                    getAlbumBitmap(context, mediaId));
+        }
         return builder.build();
     }
 
+    /**
+     * Replaces the catalog with {@code trackCount} generated tracks, which reuse the bundled
+     * music files and album art. Used by benchmarks to measure catalog sized code paths; must
+     * not be called while the catalog is being read.
+     */
+    @VisibleForTesting
+    public static void createSyntheticCatalog(int trackCount) {
+        synchronized (Catalog.lock) {
+            Catalog.music.clear();
+            Catalog.albumRes.clear();
+            Catalog.musicFileName.clear();
+            Catalog.mediaUri.clear();
+            Catalog.candidates.clear();
+            Catalog.contentKeys.clear();
+            Catalog.ranks.clear();
+        }
+        for (int i = 0; i < trackCount; i++) {
+            final boolean jazz = i % 2 == 0;
+            createMediaMetadataCompat(
+                    String.format(Locale.US, "Synthetic_%06d", i),
+                    "Track " + i,
+                    "Artist " + (i % 500),
+                    "Album " + (i % 5000),
+                    jazz ? "Jazz" : "Rock",
+                    60 + i % 240,
+                    TimeUnit.SECONDS,
+                    jazz ? "jazz_in_paris.mp3" : "the_coldest_shoulder.mp3",
+                    jazz ? R.drawable.album_jazz_blues
+                            : R.drawable.album_youtube_audio_library_rock_2);
+        }
+    }
+
     private static void createMediaMetadataCompat(
             String mediaId,
             String title,
@@ -129,10 +496,8 @@ public class MusicLibrary {
             long duration,
             TimeUnit durationUnit,
             String musicFilename,
-            int albumArtResId,
-            String albumArtResName) {
-        music.put(
-                mediaId,
+            int albumArtResId) {
+        final MediaMetadataCompat track =
                 new MediaMetadataCompat.Builder()
                         .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
                         .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
@@ -142,13 +507,16 @@ public class MusicLibrary {
                         .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
                         .putString(
                                 MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
-                                getAlbumArtUri(albumArtResName))
+                                getAlbumArtUri(mediaId))
                         .putString(
                                 MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI,
-                                getAlbumArtUri(albumArtResName))
+                                getAlbumArtUri(mediaId))
                         .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                        .build());
-        albumRes.put(mediaId, albumArtResId);
-        musicFileName.put(mediaId, musicFilename);
+                        .build();
+        Catalog.albumRes.put(mediaId, albumArtResId);
+        Catalog.musicFileName.put(mediaId, musicFilename);
+        synchronized (Catalog.lock) {
+            addTrack(0, track);
+        }
     }
 }
\ No newline at end of file
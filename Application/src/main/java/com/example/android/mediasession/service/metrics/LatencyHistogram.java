@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.service.metrics;
+
+import java.util.Locale;
+
+/**
+ * Histogram of latencies with fixed buckets, from which percentiles can be approximated with a
+ * constant amount of memory.
+ */
+public class LatencyHistogram {
+
+    // Upper bounds of the buckets. Latencies above the last one go to an overflow bucket.
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 1500, 2000, 3000,
+            5000, 10000
+    };
+
+    private final long[] mCounts = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long mCount;
+    private long mMaxMs;
+
+    public synchronized void record(long latencyMs) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && latencyMs > BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxMs() {
+        return mMaxMs;
+    }
+
+    /**
+     * Returns an upper bound of the latency below which {@code percentile} percent of the
+     * recorded latencies fall: the bound of the bucket that holds that percentile, capped by
+     * the largest latency recorded. Returns 0 if nothing was recorded.
+     */
+    public synchronized long getPercentileMs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(percentile / 100 * mCount);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_BOUNDS_MS.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MS[bucket], mMaxMs);
+            }
+        }
+        return mMaxMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d p50<=%dms p90<=%dms p99<=%dms max=%dms",
+                mCount, getPercentileMs(50), getPercentileMs(90), getPercentileMs(99), mMaxMs);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.service.metrics;
+
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.List;
+
+/**
+ * Forwards the calls of a {@link MediaSessionCompat} that send data to its controllers, and
+ * records their payloads in a {@link PayloadAccounting}. Every controller receives each
+ * payload, so they are attributed to the session rather than to a client.
+ */
+public class MeteredMediaSession {
+
+    private final MediaSessionCompat mSession;
+    private final String mName;
+    private final PayloadAccounting mAccounting;
+
+    /**
+     * @param name Name of the session in the accounting, such as its playback zone.
+     */
+    public MeteredMediaSession(@NonNull MediaSessionCompat session, @NonNull String name,
+                               @NonNull PayloadAccounting accounting) {
+        mSession = session;
+        mName = name;
+        mAccounting = accounting;
+    }
+
+    public void setQueue(List<MediaSessionCompat.QueueItem> queue) {
+        mAccounting.recordList(PayloadAccounting.API_SET_QUEUE, mName, queue);
+        mSession.setQueue(queue);
+    }
+
+    public void setMetadata(MediaMetadataCompat metadata) {
+        mAccounting.recordParcelable(PayloadAccounting.API_SET_METADATA, mName, metadata);
+        mSession.setMetadata(metadata);
+    }
+
+    public void setPlaybackState(PlaybackStateCompat state) {
+        mAccounting.recordParcelable(PayloadAccounting.API_SET_PLAYBACK_STATE, mName, state);
+        mSession.setPlaybackState(state);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.service.metrics;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives playback latency measurements, for example to aggregate and upload them.
+ * <p>
+ * Called on the thread of the playback zone that measured the latency, so implementations
+ * must be thread-safe and must not block.
+ */
+public interface MetricsSink {
+
+    /**
+     * @param metric    Name of the measurement, such as {@code play.first_audio}; see
+     *                  {@link PlaybackMetrics}.
+     * @param latencyMs Time from the command to the phase it names.
+     */
+    void onLatency(@NonNull String metric, long latencyMs);
+}
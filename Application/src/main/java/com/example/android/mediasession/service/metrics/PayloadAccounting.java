@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.service.metrics;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.BuildConfig;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the calls that send data to other processes over Binder and measures their parcelled
+ * size, per API and per client or browse node. Logs a warning when a payload gets close to
+ * the Binder transaction limit, naming the call that sent it.
+ * <p>
+ * Measuring parcels the payload a second time, so it is only enabled by default in debug
+ * builds. Thread-safe.
+ */
+public class PayloadAccounting {
+
+    private static final String TAG = PayloadAccounting.class.getSimpleName();
+
+    // Size of the Binder transaction buffer of a process, shared by all transactions in flight.
+    public static final int TRANSACTION_BUFFER_BYTES = 1024 * 1024;
+
+    // Payloads above this size may fail with TransactionTooLargeException while other
+    // transactions are in flight.
+    private static final int WARNING_THRESHOLD_BYTES = TRANSACTION_BUFFER_BYTES / 4;
+
+    public static final String API_SET_QUEUE = "setQueue";
+    public static final String API_SET_METADATA = "setMetadata";
+    public static final String API_SET_PLAYBACK_STATE = "setPlaybackState";
+    public static final String API_SEND_RESULT = "sendResult";
+    public static final String API_GET_ROOT = "onGetRoot";
+
+    /**
+     * Calls and bytes sent through one API, or by one API to one client or node.
+     */
+    private static class Counter {
+        long calls;
+        long totalBytes;
+        int maxBytes;
+
+        void add(int bytes) {
+            calls++;
+            totalBytes += bytes;
+            maxBytes = Math.max(maxBytes, bytes);
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + " total=" + totalBytes + "B max=" + maxBytes + "B avg="
+                    + (calls > 0 ? totalBytes / calls : 0) + "B";
+        }
+    }
+
+    private final Map<String, Counter> mCounters = new TreeMap<>();
+    private volatile boolean mEnabled = BuildConfig.DEBUG;
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void recordParcelable(@NonNull String api, @Nullable String detail,
+                                 @Nullable Parcelable payload) {
+        if (mEnabled) {
+            record(api, detail, sizeOf(payload));
+        }
+    }
+
+    public void recordList(@NonNull String api, @Nullable String detail,
+                           @Nullable List<? extends Parcelable> payload) {
+        if (mEnabled) {
+            record(api, detail, sizeOf(payload));
+        }
+    }
+
+    public void recordBundle(@NonNull String api, @Nullable String detail,
+                             @Nullable Bundle payload) {
+        if (mEnabled) {
+            record(api, detail, sizeOf(payload));
+        }
+    }
+
+    public void dump(@NonNull PrintWriter writer, @NonNull String prefix) {
+        synchronized (mCounters) {
+            for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+                writer.println(prefix + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+
+    private void record(@NonNull String api, @Nullable String detail, int bytes) {
+        synchronized (mCounters) {
+            getOrCreateCounter(api).add(bytes);
+            if (detail != null) {
+                getOrCreateCounter(api + "[" + detail + "]").add(bytes);
+            }
+        }
+        if (bytes >= WARNING_THRESHOLD_BYTES) {
+            Log.w(TAG, api + (detail != null ? " for " + detail : "") + " sent " + bytes
+                    + " bytes, close to the " + TRANSACTION_BUFFER_BYTES
+                    + " bytes Binder transaction buffer");
+        }
+    }
+
+    private Counter getOrCreateCounter(String key) {
+        Counter counter = mCounters.get(key);
+        if (counter == null) {
+            counter = new Counter();
+            mCounters.put(key, counter);
+        }
+        return counter;
+    }
+
+    private static int sizeOf(@Nullable Parcelable payload) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(payload, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int sizeOf(@Nullable List<? extends Parcelable> payload) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            if (payload == null) {
+                parcel.writeInt(-1);
+            } else {
+                parcel.writeInt(payload.size());
+                for (Parcelable item : payload) {
+                    parcel.writeParcelable(item, 0);
+                }
+            }
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int sizeOf(@Nullable Bundle payload) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(payload);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
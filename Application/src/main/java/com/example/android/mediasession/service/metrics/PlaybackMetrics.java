@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.service.metrics;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.example.android.mediasession.service.PlaybackInfoListener;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measures how long play, skip and seek commands take to go through the phases reported by the
+ * player, and keeps a {@link LatencyHistogram} per operation and phase. Each measurement is
+ * also passed to the {@link MetricsSink}s.
+ * <p>
+ * Metrics are named {@code <operation>.<phase>}, for example {@code play.prepared}. The
+ * {@code first_audio} phase is when the position first advanced, so {@code play.first_audio}
+ * is the time to first audio.
+ * <p>
+ * Commands and phases must be reported on the playback thread; the histograms can be read
+ * from any thread.
+ */
+public class PlaybackMetrics {
+
+    public static final int OPERATION_PLAY = 1;
+    public static final int OPERATION_SKIP = 2;
+    public static final int OPERATION_SEEK = 3;
+
+    @IntDef({OPERATION_PLAY, OPERATION_SKIP, OPERATION_SEEK})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Operation {
+    }
+
+    private final List<MetricsSink> mSinks;
+    private final Map<String, LatencyHistogram> mHistograms = new TreeMap<>();
+
+    // The operation being measured, or 0 if none, and when its command was received.
+    private int mOperation;
+    private long mCommandTime;
+
+    /**
+     * @param sinks Sinks to pass measurements to. The list is read on every measurement, so
+     *              it can be a shared, concurrently modified list.
+     */
+    public PlaybackMetrics(@NonNull List<MetricsSink> sinks) {
+        mSinks = sinks;
+    }
+
+    /**
+     * Starts measuring {@code operation}, whose command was just received. Replaces the
+     * operation being measured, if any.
+     */
+    public void onCommand(@Operation int operation) {
+        mOperation = operation;
+        mCommandTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Stops measuring the current operation, for example when playback is paused before the
+     * first audio.
+     */
+    public void cancel() {
+        mOperation = 0;
+    }
+
+    /**
+     * Returns whether {@link PlaybackInfoListener#PHASE_POSITION_ADVANCED} is measured. Players
+     * have to poll to find it, so it is only measured while a sink collects the measurements.
+     */
+    public boolean isMeasuringPositionAdvance() {
+        return !mSinks.isEmpty();
+    }
+
+    public void onPhase(@PlaybackInfoListener.Phase int phase, long elapsedRealtimeMs) {
+        if (mOperation == 0) {
+            // Not caused by a command, e.g. the player was prepared again after being idle.
+            return;
+        }
+
+        final String metric = getOperationName(mOperation) + "." + getPhaseName(phase);
+        final long latencyMs = elapsedRealtimeMs - mCommandTime;
+        getOrCreateHistogram(metric).record(latencyMs);
+        for (MetricsSink sink : mSinks) {
+            sink.onLatency(metric, latencyMs);
+        }
+
+        if (phase == PlaybackInfoListener.PHASE_POSITION_ADVANCED
+                || (!isMeasuringPositionAdvance()
+                        && (phase == PlaybackInfoListener.PHASE_STARTED
+                                || phase == PlaybackInfoListener.PHASE_SEEK_COMPLETED))) {
+            // The last phase of the operation that is measured.
+            mOperation = 0;
+        }
+    }
+
+    /**
+     * Returns the histogram of {@code metric}, or null if it was never measured.
+     */
+    @Nullable
+    public LatencyHistogram getHistogram(@NonNull String metric) {
+        synchronized (mHistograms) {
+            return mHistograms.get(metric);
+        }
+    }
+
+    public void dump(@NonNull PrintWriter writer, @NonNull String prefix) {
+        synchronized (mHistograms) {
+            for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+                writer.println(prefix + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+
+    private LatencyHistogram getOrCreateHistogram(String metric) {
+        synchronized (mHistograms) {
+            LatencyHistogram histogram = mHistograms.get(metric);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                mHistograms.put(metric, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    private static String getOperationName(@Operation int operation) {
+        switch (operation) {
+            case OPERATION_PLAY:
+                return "play";
+            case OPERATION_SKIP:
+                return "skip";
+            case OPERATION_SEEK:
+                return "seek";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static String getPhaseName(@PlaybackInfoListener.Phase int phase) {
+        switch (phase) {
+            case PlaybackInfoListener.PHASE_SOURCE_OPENED:
+                return "source_opened";
+            case PlaybackInfoListener.PHASE_PREPARED:
+                return "prepared";
+            case PlaybackInfoListener.PHASE_STARTED:
+                return "started";
+            case PlaybackInfoListener.PHASE_SEEK_COMPLETED:
+                return "seek_completed";
+            case PlaybackInfoListener.PHASE_POSITION_ADVANCED:
+                return "first_audio";
+            default:
+                return "unknown";
+        }
+    }
+}
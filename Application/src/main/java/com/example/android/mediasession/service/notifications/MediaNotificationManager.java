@@ -22,12 +22,16 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.graphics.BitmapCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.app.NotificationCompat.MediaStyle;
@@ -35,6 +39,8 @@ import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v4.os.BuildCompat;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.example.android.mediasession.R;
@@ -43,6 +49,10 @@ import com.example.android.mediasession.service.PlaybackInfoListener;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
 import com.example.android.mediasession.ui.MainActivity;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 
 /**
  * Keeps track of a notification and updates it automatically for a given MediaSession. This is
@@ -50,76 +60,265 @@ import com.example.android.mediasession.ui.MainActivity;
  */
 public class MediaNotificationManager {
 
+    // ID of the notification of the default zone. Other zones use the following IDs.
     public static final int NOTIFICATION_ID = 412;
 
     private static final String TAG = MediaNotificationManager.class.getSimpleName();
     private static final String CHANNEL_ID = "com.example.android.musicplayer.channel";
     private static final int REQUEST_CODE = 501;
 
+    // Minimum time between two posts of the notification.
+    private static final long MIN_UPDATE_INTERVAL_MS = 250;
+
     private final MusicService mService;
+    private final int mNotificationId;
+    // Zone whose session the notification controls, or null for the default session.
+    private final String mZoneId;
 
-    private final NotificationCompat.Action mPlayAction;
-    private final NotificationCompat.Action mPauseAction;
-    private final NotificationCompat.Action mNextAction;
-    private final NotificationCompat.Action mPrevAction;
+    // Created with the first notification, so that service startup doesn't pay for them.
+    private NotificationCompat.Action mPlayAction;
+    private NotificationCompat.Action mPauseAction;
+    private NotificationCompat.Action mNextAction;
+    private NotificationCompat.Action mPrevAction;
     private final NotificationManager mNotificationManager;
 
+    private boolean mChannelCreated;
+    private PendingIntent mContentIntent;
+    private PendingIntent mStopIntent;
+
+    // Per-track state, reused as long as the same track is shown. The album art is decoded
+    // in the background; until it is ready the notification shows a placeholder, so that
+    // posting the notification (and calling startForeground()) is never delayed by decoding.
+    // The executor is created for the first track, as zones that never play don't need it.
+    private ExecutorService mArtExecutor;
+    private boolean mDestroyed;
+    private Future<?> mArtRequest;
+    private String mLargeIconMediaId;
+    private Bitmap mLargeIcon;
+    private Bitmap mPlaceholderIcon;
+    // Size of mLargeIcon, read from other threads.
+    private volatile long mLargeIconBytes;
+
+    // Arguments of the last getNotification() call, to rebuild it once the art is ready.
+    private MediaMetadataCompat mLastMetadata;
+    private PlaybackStateCompat mLastState;
+    private MediaSessionCompat.Token mLastToken;
+
+    // The visible content of the last built notification. A new notification is only built
+    // when one of these changes.
+    private Notification mLastNotification;
+    private String mLastMediaId;
+    private CharSequence mLastTitle;
+    private CharSequence mLastSubtitle;
+    private boolean mLastIsPlaying;
+    private long mLastVisibleActions;
+
+    // Rate limiting of posts to the NotificationManager.
+    private final Handler mHandler = new Handler();
+    private Notification mPostedNotification;
+    private Notification mPendingNotification;
+    private long mLastPostTime;
+    private final Runnable mPostRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Notification notification = mPendingNotification;
+            mPendingNotification = null;
+            if (notification != null) {
+                mNotificationManager.notify(mNotificationId, notification);
+                onNotificationPosted(notification);
+            }
+        }
+    };
+
     public MediaNotificationManager(MusicService service) {
+        this(service, NOTIFICATION_ID, null);
+    }
+
+    /**
+     * Creates a manager for the notification of a playback zone.
+     *
+     * @param notificationId ID of the notification, unique per zone.
+     * @param zoneId         ID of the zone, or null for the default session, whose actions
+     *                       are sent through {@link MediaButtonReceiver}.
+     */
+    public MediaNotificationManager(MusicService service, int notificationId, String zoneId) {
         mService = service;
+        mNotificationId = notificationId;
+        mZoneId = zoneId;
 
         mNotificationManager =
                 (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
 
-        mPlayAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_play_arrow_white_24dp,
-                        mService.getString(R.string.label_play),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_PLAY));
-        mPauseAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_pause_white_24dp,
-                        mService.getString(R.string.label_pause),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_PAUSE));
-        mNextAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_skip_next_white_24dp,
-                        mService.getString(R.string.label_next),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT));
-        mPrevAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_skip_previous_white_24dp,
-                        mService.getString(R.string.label_previous),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS));
-
-        // Cancel all notifications to handle the case where the Service was killed and
+        // Cancel the notification to handle the case where the Service was killed and
         // restarted by the system.
-        mNotificationManager.cancelAll();
+        mNotificationManager.cancel(mNotificationId);
+    }
+
+    private void createActions() {
+        TraceCompat.beginSection("MediaNotificationManager.createActions");
+        try {
+            mPlayAction =
+                    new NotificationCompat.Action(
+                            R.drawable.ic_play_arrow_white_24dp,
+                            mService.getString(R.string.label_play),
+                            buildActionIntent(PlaybackStateCompat.ACTION_PLAY));
+            mPauseAction =
+                    new NotificationCompat.Action(
+                            R.drawable.ic_pause_white_24dp,
+                            mService.getString(R.string.label_pause),
+                            buildActionIntent(PlaybackStateCompat.ACTION_PAUSE));
+            mNextAction =
+                    new NotificationCompat.Action(
+                            R.drawable.ic_skip_next_white_24dp,
+                            mService.getString(R.string.label_next),
+                            buildActionIntent(PlaybackStateCompat.ACTION_SKIP_TO_NEXT));
+            mPrevAction =
+                    new NotificationCompat.Action(
+                            R.drawable.ic_skip_previous_white_24dp,
+                            mService.getString(R.string.label_previous),
+                            buildActionIntent(PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS));
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    public int getNotificationId() {
+        return mNotificationId;
     }
 
     public void onDestroy() {
+        mHandler.removeCallbacks(mPostRunnable);
+        mDestroyed = true;
+        if (mArtExecutor != null) {
+            mArtExecutor.shutdownNow();
+            mArtExecutor = null;
+        }
         Log.d(TAG, "onDestroy: ");
     }
 
+    /**
+     * Returns the memory held by the decoded album art. May be called from any thread.
+     */
+    public long getResidentBytes() {
+        return mLargeIconBytes;
+    }
+
+    /**
+     * Drops the decoded album art and the notification built with it, unless the notification
+     * is showing. The art is decoded again with the next notification. May be called from any
+     * thread.
+     */
+    public void trimMemory() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPostedNotification != null || mPendingNotification != null) {
+                    return;
+                }
+                if (mArtRequest != null) {
+                    mArtRequest.cancel(true);
+                    mArtRequest = null;
+                }
+                mLargeIconMediaId = null;
+                mLargeIcon = null;
+                mLargeIconBytes = 0;
+                mLastNotification = null;
+                mLastMetadata = null;
+                Log.d(TAG, "trimMemory: Album art released");
+            }
+        });
+    }
+
     public NotificationManager getNotificationManager() {
         return mNotificationManager;
     }
 
+    /**
+     * Returns the notification for the given metadata and state. As long as the visible
+     * content (track, play/pause state and available actions) is unchanged, the previously
+     * built instance is returned.
+     */
     public Notification getNotification(MediaMetadataCompat metadata,
                                         @NonNull PlaybackStateCompat state,
                                         MediaSessionCompat.Token token) {
+        mLastMetadata = metadata;
+        mLastState = state;
+        mLastToken = token;
+
         boolean isPlaying = state.getState() == PlaybackStateCompat.STATE_PLAYING;
         MediaDescriptionCompat description = metadata.getDescription();
+        long visibleActions = state.getActions()
+                & (PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+                   | PlaybackStateCompat.ACTION_SKIP_TO_NEXT);
+
+        if (mLastNotification != null
+                && isPlaying == mLastIsPlaying
+                && visibleActions == mLastVisibleActions
+                && TextUtils.equals(description.getMediaId(), mLastMediaId)
+                && TextUtils.equals(description.getTitle(), mLastTitle)
+                && TextUtils.equals(description.getSubtitle(), mLastSubtitle)) {
+            return mLastNotification;
+        }
+
         NotificationCompat.Builder builder =
                 buildNotification(state, token, isPlaying, description);
-        return builder.build();
+        mLastNotification = builder.build();
+        mLastMediaId = description.getMediaId();
+        mLastTitle = description.getTitle();
+        mLastSubtitle = description.getSubtitle();
+        mLastIsPlaying = isPlaying;
+        mLastVisibleActions = visibleActions;
+        return mLastNotification;
+    }
+
+    /**
+     * Posts the notification, unless it is already showing. Posts are spaced at least
+     * {@link #MIN_UPDATE_INTERVAL_MS} apart; if updates arrive faster, only the latest one is
+     * posted.
+     */
+    public void postNotification(@NonNull Notification notification) {
+        if (notification == mPostedNotification) {
+            mHandler.removeCallbacks(mPostRunnable);
+            mPendingNotification = null;
+            return;
+        }
+
+        mPendingNotification = notification;
+        mHandler.removeCallbacks(mPostRunnable);
+        final long delay = mLastPostTime + MIN_UPDATE_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (delay > 0) {
+            mHandler.postDelayed(mPostRunnable, delay);
+        } else {
+            mPostRunnable.run();
+        }
+    }
+
+    /**
+     * Must be called when the notification was posted directly, e.g. through
+     * {@link android.app.Service#startForeground(int, Notification)}.
+     */
+    public void onNotificationPosted(@NonNull Notification notification) {
+        mHandler.removeCallbacks(mPostRunnable);
+        mPendingNotification = null;
+        mPostedNotification = notification;
+        mLastPostTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Must be called when the notification was removed, so that pending updates are dropped.
+     */
+    public void onNotificationRemoved() {
+        mHandler.removeCallbacks(mPostRunnable);
+        mPendingNotification = null;
+        mPostedNotification = null;
+    }
+
+    /**
+     * Removes the notification, when it isn't attached to the service as foreground.
+     */
+    public void cancelNotification() {
+        onNotificationRemoved();
+        mNotificationManager.cancel(mNotificationId);
     }
 
     private NotificationCompat.Builder buildNotification(@NonNull PlaybackStateCompat state,
@@ -128,8 +327,12 @@ public class MediaNotificationManager {
                                                          MediaDescriptionCompat description) {
 
         // Create the (mandatory) notification channel when running on Android Oreo.
-        if (isAndroidOOrHigher()) {
+        if (isAndroidOOrHigher() && !mChannelCreated) {
             createChannel();
+            mChannelCreated = true;
+        }
+        if (mPlayAction == null) {
+            createActions();
         }
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(mService, CHANNEL_ID);
@@ -139,23 +342,19 @@ public class MediaNotificationManager {
                         .setShowActionsInCompactView(0, 1, 2)
                         // For backwards compatibility with Android L and earlier.
                         .setShowCancelButton(true)
-                        .setCancelButtonIntent(
-                                MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                        mService,
-                                        PlaybackStateCompat.ACTION_STOP)))
+                        .setCancelButtonIntent(getStopIntent()))
                 .setColor(ContextCompat.getColor(mService, R.color.notification_bg))
                 .setSmallIcon(R.drawable.ic_stat_image_audiotrack)
                 // Pending intent that is fired when user clicks on notification.
-                .setContentIntent(createContentIntent())
+                .setContentIntent(getContentIntent())
                 // Title - Usually Song name.
                 .setContentTitle(description.getTitle())
                 // Subtitle - Usually Artist name.
                 .setContentText(description.getSubtitle())
-                .setLargeIcon(MusicLibrary.getAlbumBitmap(mService, description.getMediaId()))
+                .setLargeIcon(getLargeIcon(description.getMediaId()))
                 // When notification is deleted (when playback is paused and notification can be
                 // deleted) fire MediaButtonPendingIntent with ACTION_STOP.
-                .setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(
-                        mService, PlaybackStateCompat.ACTION_STOP))
+                .setDeleteIntent(getStopIntent())
                 // Show controls on lock screen even when user hides sensitive content.
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
 
@@ -204,6 +403,101 @@ public class MediaNotificationManager {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
     }
 
+    private Bitmap getLargeIcon(String mediaId) {
+        if (!TextUtils.equals(mediaId, mLargeIconMediaId)) {
+            // New track: drop the previous art, and cancel its request if still pending.
+            mLargeIconMediaId = mediaId;
+            mLargeIcon = null;
+            mLargeIconBytes = 0;
+            if (mArtRequest != null) {
+                mArtRequest.cancel(true);
+                mArtRequest = null;
+            }
+            if (!mDestroyed) {
+                if (mArtExecutor == null) {
+                    mArtExecutor = Executors.newSingleThreadExecutor();
+                }
+                mArtRequest = mArtExecutor.submit(new ArtLoader(mediaId));
+            }
+        }
+        return mLargeIcon != null ? mLargeIcon : getPlaceholderIcon();
+    }
+
+    private Bitmap getPlaceholderIcon() {
+        if (mPlaceholderIcon == null) {
+            mPlaceholderIcon = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            mPlaceholderIcon.eraseColor(ContextCompat.getColor(mService, R.color.notification_bg));
+        }
+        return mPlaceholderIcon;
+    }
+
+    private void onLargeIconLoaded(String mediaId, Bitmap bitmap) {
+        if (!TextUtils.equals(mediaId, mLargeIconMediaId) || bitmap == null) {
+            // The track changed while the art was loading.
+            return;
+        }
+        mLargeIcon = bitmap;
+        mLargeIconBytes = BitmapCompat.getAllocationByteCount(bitmap);
+        mArtRequest = null;
+        mService.getMemoryCoordinator().onResidentBytesChanged();
+
+        // Rebuild the notification with the art, and update it if it is showing.
+        mLastNotification = null;
+        final Notification notification = getNotification(mLastMetadata, mLastState, mLastToken);
+        if (mPostedNotification != null) {
+            postNotification(notification);
+        }
+    }
+
+    /**
+     * Decodes the album art for a track, scaled down to the size of a notification large icon.
+     */
+    private class ArtLoader implements Runnable {
+        private final String mMediaId;
+
+        ArtLoader(String mediaId) {
+            mMediaId = mediaId;
+        }
+
+        @Override
+        public void run() {
+            final int width = mService.getResources()
+                    .getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            final int height = mService.getResources()
+                    .getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+            final Bitmap bitmap = MusicLibrary.getAlbumBitmap(mService, mMediaId, width, height);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLargeIconLoaded(mMediaId, bitmap);
+                }
+            });
+        }
+    }
+
+    private PendingIntent getStopIntent() {
+        if (mStopIntent == null) {
+            mStopIntent = buildActionIntent(PlaybackStateCompat.ACTION_STOP);
+        }
+        return mStopIntent;
+    }
+
+    private PendingIntent buildActionIntent(long action) {
+        return mZoneId == null
+                ? MediaButtonReceiver.buildMediaButtonPendingIntent(mService, action)
+                : MusicService.buildZoneActionIntent(mService, mZoneId, action);
+    }
+
+    private PendingIntent getContentIntent() {
+        if (mContentIntent == null) {
+            mContentIntent = createContentIntent();
+        }
+        return mContentIntent;
+    }
+
     private PendingIntent createContentIntent() {
         Intent openUI = new Intent(mService, MainActivity.class);
         openUI.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
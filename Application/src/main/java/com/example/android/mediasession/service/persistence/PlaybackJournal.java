@@ -0,0 +1,461 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.persistence;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Persists the play queue, the current queue index and the playback position in a compact
+ * append-only journal, so that the service can restore its state after being killed.
+ * <p>
+ * Every edit is appended as a single small record, which means a crash can at most lose the
+ * record that was being written; such a partial record is replaced by a snapshot before
+ * anything else is appended. Once enough records have accumulated the journal is compacted
+ * into a snapshot of the current state. All file access happens on a dedicated background
+ * thread; callers on the main thread never block on disk I/O.
+ */
+public class PlaybackJournal {
+
+    private static final String TAG = PlaybackJournal.class.getSimpleName();
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_INDEX = 3;
+    private static final byte OP_POSITION = 4;
+
+    // Number of records appended after which the journal is rewritten as a snapshot.
+    private static final int COMPACTION_THRESHOLD = 512;
+
+    /**
+     * Receives the state read back from the journal, on the thread that called
+     * {@link #restore(RestoreListener)}.
+     */
+    public interface RestoreListener {
+        void onRestored(@NonNull Snapshot snapshot);
+    }
+
+    /**
+     * Immutable copy of the persisted playback state.
+     */
+    public static final class Snapshot {
+        public final List<String> mediaIds;
+        public final int queueIndex;
+        public final long position;
+
+        Snapshot(List<String> mediaIds, int queueIndex, long position) {
+            this.mediaIds = Collections.unmodifiableList(new ArrayList<>(mediaIds));
+            this.queueIndex = queueIndex;
+            this.position = position;
+        }
+
+        public boolean isEmpty() {
+            return mediaIds.isEmpty();
+        }
+    }
+
+    private final Context mContext;
+    private final String mFileName;
+    private final HandlerThread mIoThread;
+    private final Handler mIoHandler;
+
+    // Mirror of the persisted state, only accessed on the I/O thread.
+    private final List<String> mQueue = new ArrayList<>();
+    private int mQueueIndex = -1;
+    private long mPosition;
+
+    private File mFile;
+    private FileOutputStream mOut;
+    private int mRecordsSinceCompaction;
+    // Whether the file may end with a partial or corrupt record, after which nothing may be
+    // appended.
+    private boolean mTailDamaged;
+
+    /**
+     * @param fileName Name of the journal file in the app's files directory.
+     */
+    public PlaybackJournal(@NonNull Context context, @NonNull String fileName) {
+        mContext = context.getApplicationContext();
+        mFileName = fileName;
+        mIoThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mIoThread.start();
+        mIoHandler = new Handler(mIoThread.getLooper());
+    }
+
+    /**
+     * Reads the journal in the background and delivers the restored state to
+     * {@code listener} on the calling thread, which must have a Looper. Must be called before
+     * any record is appended.
+     */
+    public void restore(@NonNull final RestoreListener listener) {
+        final Handler callbackHandler = new Handler();
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                readJournal();
+                final Snapshot snapshot = new Snapshot(mQueue, mQueueIndex, mPosition);
+                callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRestored(snapshot);
+                    }
+                });
+            }
+        });
+    }
+
+    public void recordAdd(@NonNull final String mediaId) {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.add(mediaId);
+                append(OP_ADD, mediaId, 0);
+            }
+        });
+    }
+
+    public void recordRemove(@NonNull final String mediaId) {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.remove(mediaId);
+                append(OP_REMOVE, mediaId, 0);
+            }
+        });
+    }
+
+    /**
+     * Records a change of the current queue item. The position is reset to the start.
+     */
+    public void recordQueueIndex(final int queueIndex) {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueueIndex = queueIndex;
+                mPosition = 0;
+                append(OP_INDEX, null, queueIndex);
+            }
+        });
+    }
+
+    /**
+     * Records a checkpoint of the playback position within the current queue item.
+     */
+    public void recordPosition(final long position) {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (position == mPosition) {
+                    return;
+                }
+                mPosition = position;
+                append(OP_POSITION, null, position);
+            }
+        });
+    }
+
+    /**
+     * Replaces the whole journal with the given state, for example when the live state has
+     * diverged from what was restored.
+     */
+    public void rewrite(@NonNull List<String> mediaIds, final int queueIndex, final long position) {
+        final List<String> queue = new ArrayList<>(mediaIds);
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.clear();
+                mQueue.addAll(queue);
+                mQueueIndex = queueIndex;
+                mPosition = position;
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Replaces the journal with the given state, unless it already holds the same queue and
+     * queue index. Records appended before this call are taken into account, such as those
+     * of items queued while the journal was being restored.
+     */
+    public void rewriteIfChanged(@NonNull List<String> mediaIds,
+                                 final int queueIndex,
+                                 final long position) {
+        final List<String> queue = new ArrayList<>(mediaIds);
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue.equals(mQueue) && queueIndex == mQueueIndex) {
+                    return;
+                }
+                mQueue.clear();
+                mQueue.addAll(queue);
+                mQueueIndex = queueIndex;
+                mPosition = position;
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Blocks until the records posted so far are written. Must not be called on the main
+     * thread.
+     */
+    @VisibleForTesting
+    public void flush() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * Flushes pending records and stops the background thread.
+     */
+    public void close() {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+        mIoThread.quitSafely();
+    }
+
+    private File getFile() {
+        if (mFile == null) {
+            mFile = new File(mContext.getFilesDir(), mFileName);
+        }
+        return mFile;
+    }
+
+    private void readJournal() {
+        final File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        // Offset of the end of the last complete record.
+        long validLength = 0;
+        CountingInputStream counter = null;
+        DataInputStream in = null;
+        try {
+            counter = new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            in = new DataInputStream(counter);
+            while (true) {
+                final byte op = in.readByte();
+                switch (op) {
+                    case OP_ADD:
+                        mQueue.add(in.readUTF());
+                        break;
+                    case OP_REMOVE:
+                        mQueue.remove(in.readUTF());
+                        break;
+                    case OP_INDEX:
+                        mQueueIndex = (int) in.readLong();
+                        mPosition = 0;
+                        break;
+                    case OP_POSITION:
+                        mPosition = in.readLong();
+                        break;
+                    default:
+                        throw new IOException("Unknown journal record: " + op);
+                }
+                mRecordsSinceCompaction++;
+                validLength = counter.getCount();
+            }
+        } catch (EOFException e) {
+            // End of the journal, or a record that was cut short by a crash.
+        } catch (IOException e) {
+            Log.w(TAG, "readJournal: Ignoring corrupt tail of the journal", e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (validLength < file.length()) {
+            // Records appended after the damaged one would never be read back, so the
+            // journal is rewritten before the next append.
+            Log.w(TAG, "readJournal: Dropping " + (file.length() - validLength)
+                    + " bytes after the last complete record");
+            mTailDamaged = true;
+        }
+
+        if (mQueueIndex >= mQueue.size()) {
+            mQueueIndex = mQueue.isEmpty() ? -1 : 0;
+            mPosition = 0;
+        }
+        Log.d(TAG, "readJournal: Restored " + mQueue.size() + " queue items");
+    }
+
+    private void append(byte op, String mediaId, long value) {
+        if (mTailDamaged) {
+            // The snapshot already includes this record, since the mirror state was updated.
+            compact();
+            return;
+        }
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(32);
+        try {
+            writeRecord(new DataOutputStream(record), op, mediaId, value);
+
+            if (mOut == null) {
+                mOut = new FileOutputStream(getFile(), true);
+            }
+            // A single write per record, so a crash can only truncate the last record.
+            mOut.write(record.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "append: Failed to write journal record", e);
+            closeOutput();
+            // Part of the record may have been written.
+            mTailDamaged = true;
+            return;
+        }
+
+        if (++mRecordsSinceCompaction >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        closeOutput();
+
+        final File file = getFile();
+        final File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            final DataOutputStream data = new DataOutputStream(out);
+            for (String mediaId : mQueue) {
+                writeRecord(data, OP_ADD, mediaId, 0);
+            }
+            writeRecord(data, OP_INDEX, null, mQueueIndex);
+            writeRecord(data, OP_POSITION, null, mPosition);
+            data.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "compact: Failed to write snapshot", e);
+            closeQuietly(out);
+            tmp.delete();
+            return;
+        }
+        closeQuietly(out);
+
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "compact: Failed to replace journal");
+            tmp.delete();
+            return;
+        }
+        mRecordsSinceCompaction = 0;
+        mTailDamaged = false;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, String mediaId, long value)
+            throws IOException {
+        out.writeByte(op);
+        if (op == OP_ADD || op == OP_REMOVE) {
+            out.writeUTF(mediaId);
+        } else {
+            out.writeLong(value);
+        }
+    }
+
+    private void closeOutput() {
+        closeQuietly(mOut);
+        mOut = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, to find the end of the last complete record.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
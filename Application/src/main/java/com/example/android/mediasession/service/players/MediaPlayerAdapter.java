@@ -18,8 +18,12 @@ package com.example.android.mediasession.service.players;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
 import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
 import android.os.SystemClock;
+import android.support.v4.graphics.BitmapCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
@@ -29,24 +33,59 @@ import com.example.android.mediasession.service.PlayerAdapter;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
 import com.example.android.mediasession.ui.MainActivity;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Exposes the functionality of the {@link MediaPlayer} and implements the {@link PlayerAdapter}
  * so that {@link MainActivity} can control music playback.
  */
 public final class MediaPlayerAdapter extends PlayerAdapter {
 
+    private static final String TAG = MediaPlayerAdapter.class.getSimpleName();
+
+    // How long playback can stay paused before the MediaPlayer is released.
+    private static final long DEFAULT_IDLE_RELEASE_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Rough native footprint of a MediaPlayer with its extractor, decoder and buffers. It is
+    // not reported by the framework, and counts towards getResidentBytes() while one is held.
+    private static final long PLAYER_RESIDENT_BYTES = 2 * 1024 * 1024;
+
     private final Context mContext;
     private MediaPlayer mMediaPlayer;
+    // Either the asset file of a bundled track, or the URI of a track of another source.
     private String mFilename;
+    private Uri mMediaUri;
     private PlaybackInfoListener mPlaybackInfoListener;
     private MediaMetadataCompat mCurrentMedia;
+    // Size of the album art in mCurrentMedia, read from other threads.
+    private volatile long mCurrentArtBytes;
+    // Whether mMediaPlayer is set, read from other threads.
+    private volatile boolean mHoldsPlayer;
     private int mState;
     private boolean mCurrentMediaPlayedToCompletion;
 
+    // The MediaPlayer is prepared asynchronously, since streams and content URIs may take a
+    // while to open. A play command received meanwhile starts playback once it is prepared.
+    private boolean mPreparing;
+    private boolean mPlayWhenPrepared;
+    private String mErrorMessage;
+
     // Work-around for a MediaPlayer bug related to the behavior of MediaPlayer.seekTo()
     // while not playing.
     private int mSeekWhileNotPlaying = -1;
 
+    // While paused for long enough, the MediaPlayer is released to free the decoder and its
+    // buffers. The position is kept in mSeekWhileNotPlaying, and play() prepares it again.
+    private final Handler mHandler = new Handler();
+    private long mIdleReleaseDelayMs = DEFAULT_IDLE_RELEASE_DELAY_MS;
+    private boolean mReleasedWhileIdle;
+    private final Runnable mIdleReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseIdleResources();
+        }
+    };
+
     public MediaPlayerAdapter(Context context, PlaybackInfoListener listener) {
         super(context);
         mContext = context.getApplicationContext();
@@ -63,6 +102,7 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
     private void initializeMediaPlayer() {
         if (mMediaPlayer == null) {
             mMediaPlayer = new MediaPlayer();
+            mHoldsPlayer = true;
             mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
                 @Override
                 public void onCompletion(MediaPlayer mediaPlayer) {
@@ -76,15 +116,43 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
                     setNewState(PlaybackStateCompat.STATE_PAUSED);
                 }
             });
+            mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mediaPlayer) {
+                    onPlayerPrepared();
+                }
+            });
+            mMediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+                @Override
+                public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+                    onPlayerError("MediaPlayer error " + what + " (" + extra + ")", null);
+                    return true;
+                }
+            });
+            mMediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+                @Override
+                public void onSeekComplete(MediaPlayer mediaPlayer) {
+                    reportPhase(PlaybackInfoListener.PHASE_SEEK_COMPLETED);
+                    if (mediaPlayer.isPlaying()) {
+                        watchForPositionAdvance(mPlaybackInfoListener);
+                    }
+                }
+            });
         }
     }
 
     // Implements PlaybackControl.
     @Override
     public void playFromMedia(MediaMetadataCompat metadata) {
-        mCurrentMedia = metadata;
+        playFromMedia(metadata, 0);
+    }
+
+    @Override
+    public void playFromMedia(MediaMetadataCompat metadata, long startPosition) {
+        setCurrentMedia(metadata);
         final String mediaId = metadata.getDescription().getMediaId();
-        playFile(MusicLibrary.getMusicFilename(mediaId));
+        playFile(MusicLibrary.getMusicFilename(mediaId), MusicLibrary.getMediaUri(mediaId),
+                startPosition);
     }
 
     @Override
@@ -92,8 +160,10 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         return mCurrentMedia;
     }
 
-    private void playFile(String filename) {
-        boolean mediaChanged = (mFilename == null || !filename.equals(mFilename));
+    private void playFile(String filename, Uri mediaUri, long startPosition) {
+        boolean mediaChanged = filename != null
+                ? !filename.equals(mFilename)
+                : mediaUri == null || !mediaUri.equals(mMediaUri);
         if (mCurrentMediaPlayedToCompletion) {
             // Last audio file was played to completion, the resourceId hasn't changed, but the
             // player was released, so force a reload of the media file for playback.
@@ -101,6 +171,9 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
             mCurrentMediaPlayedToCompletion = false;
         }
         if (!mediaChanged) {
+            if (startPosition > 0) {
+                seekTo(startPosition);
+            }
             if (!isPlaying()) {
                 play();
             }
@@ -110,26 +183,136 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         }
 
         mFilename = filename;
+        mMediaUri = mediaUri;
+        mReleasedWhileIdle = false;
+        // Applied once the player is prepared.
+        mSeekWhileNotPlaying = startPosition > 0 ? (int) startPosition : -1;
 
+        if (prepareFile()) {
+            play();
+        }
+    }
+
+    /**
+     * Starts preparing the current file. Playback state changes to buffering until the player
+     * is prepared, see {@link #onPlayerPrepared()}.
+     *
+     * @return False if the file couldn't be opened, in which case the error was reported.
+     */
+    private boolean prepareFile() {
         initializeMediaPlayer();
 
         try {
-            AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(mFilename);
-            mMediaPlayer.setDataSource(
-                    assetFileDescriptor.getFileDescriptor(),
-                    assetFileDescriptor.getStartOffset(),
-                    assetFileDescriptor.getLength());
+            if (mFilename != null) {
+                AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(mFilename);
+                mMediaPlayer.setDataSource(
+                        assetFileDescriptor.getFileDescriptor(),
+                        assetFileDescriptor.getStartOffset(),
+                        assetFileDescriptor.getLength());
+            } else {
+                mMediaPlayer.setDataSource(mContext, mMediaUri);
+            }
         } catch (Exception e) {
-            throw new RuntimeException("Failed to open file: " + mFilename, e);
+            onPlayerError("Failed to open " + (mFilename != null ? mFilename : mMediaUri), e);
+            return false;
         }
+        reportPhase(PlaybackInfoListener.PHASE_SOURCE_OPENED);
 
-        try {
-            mMediaPlayer.prepare();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to open file: " + mFilename, e);
+        mPreparing = true;
+        mMediaPlayer.prepareAsync();
+        setNewState(PlaybackStateCompat.STATE_BUFFERING);
+        return true;
+    }
+
+    private void onPlayerPrepared() {
+        mPreparing = false;
+        reportPhase(PlaybackInfoListener.PHASE_PREPARED);
+        if (mSeekWhileNotPlaying > 0) {
+            mMediaPlayer.seekTo(mSeekWhileNotPlaying);
         }
+        if (mPlayWhenPrepared) {
+            mPlayWhenPrepared = false;
+            startPlayer();
+        } else {
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
+        }
+    }
+
+    /**
+     * Releases the player after it failed, and reports {@link PlaybackStateCompat#STATE_ERROR}.
+     * The next play command opens the file again.
+     */
+    private void onPlayerError(String message, Exception e) {
+        Log.w(TAG, "onPlayerError: " + message, e);
+        release();
+        mReleasedWhileIdle = false;
+        mErrorMessage = message;
+        setNewState(PlaybackStateCompat.STATE_ERROR);
+        mErrorMessage = null;
+        // Forces a reload of the file on the next play command.
+        mCurrentMediaPlayedToCompletion = true;
+    }
 
-        play();
+    private void reportPhase(@PlaybackInfoListener.Phase int phase) {
+        mPlaybackInfoListener.onPlaybackPhase(phase, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Sets how long playback can stay paused before the {@link MediaPlayer} is released.
+     *
+     * @param delayMs Delay in milliseconds, or 0 to keep the player while paused.
+     */
+    public void setIdleReleaseDelay(long delayMs) {
+        mIdleReleaseDelayMs = delayMs;
+        mHandler.removeCallbacks(mIdleReleaseRunnable);
+        if (mIdleReleaseDelayMs > 0 && mState == PlaybackStateCompat.STATE_PAUSED) {
+            mHandler.postDelayed(mIdleReleaseRunnable, mIdleReleaseDelayMs);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        releaseIdleResources();
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return mCurrentArtBytes + (mHoldsPlayer ? PLAYER_RESIDENT_BYTES : 0);
+    }
+
+    private void setCurrentMedia(MediaMetadataCompat metadata) {
+        mCurrentMedia = metadata;
+        final Bitmap art = metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART);
+        mCurrentArtBytes = art != null ? BitmapCompat.getAllocationByteCount(art) : 0;
+    }
+
+    private void releaseIdleResources() {
+        mHandler.removeCallbacks(mIdleReleaseRunnable);
+        if (mMediaPlayer == null
+                || mState != PlaybackStateCompat.STATE_PAUSED
+                || isPlaying()) {
+            return;
+        }
+
+        if (mPreparing) {
+            mSeekWhileNotPlaying = Math.max(0, mSeekWhileNotPlaying);
+        } else if (mSeekWhileNotPlaying < 0) {
+            final int position = mMediaPlayer.getCurrentPosition();
+            // After completion the next play() starts over, as it would with the old player.
+            mSeekWhileNotPlaying = position < mMediaPlayer.getDuration() ? position : 0;
+        }
+        release();
+        mReleasedWhileIdle = true;
+
+        // The album art is the largest part of the metadata, and it can be loaded again.
+        if (mCurrentMedia != null
+                && mCurrentMedia.getBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART) != null) {
+            setCurrentMedia(new MediaMetadataCompat.Builder(mCurrentMedia)
+                    .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, null)
+                    .build());
+        }
+        Log.d(TAG, "releaseIdleResources: Released MediaPlayer at " + mSeekWhileNotPlaying);
+        mPlaybackInfoListener.onIdleResourcesReleased();
     }
 
     @Override
@@ -138,31 +321,60 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         // be updated, so that MediaNotificationManager can take down the notification.
         setNewState(PlaybackStateCompat.STATE_STOPPED);
         release();
+        mReleasedWhileIdle = false;
     }
 
     private void release() {
+        mPreparing = false;
+        mPlayWhenPrepared = false;
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
+            mHoldsPlayer = false;
         }
     }
 
     @Override
     public boolean isPlaying() {
-        return mMediaPlayer != null && mMediaPlayer.isPlaying();
+        return mMediaPlayer != null && !mPreparing && mMediaPlayer.isPlaying();
+    }
+
+    @Override
+    protected long getCurrentPosition() {
+        return mMediaPlayer != null && !mPreparing ? mMediaPlayer.getCurrentPosition() : -1;
     }
 
     @Override
     protected void onPlay() {
+        if (mMediaPlayer == null && mReleasedWhileIdle) {
+            // Transparently restore the player released while paused, at the saved position.
+            mReleasedWhileIdle = false;
+            if (!prepareFile()) {
+                return;
+            }
+        }
+        if (mPreparing) {
+            mPlayWhenPrepared = true;
+            return;
+        }
+        startPlayer();
+    }
+
+    private void startPlayer() {
         if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
             mMediaPlayer.start();
+            reportPhase(PlaybackInfoListener.PHASE_STARTED);
+            watchForPositionAdvance(mPlaybackInfoListener);
             setNewState(PlaybackStateCompat.STATE_PLAYING);
         }
     }
 
     @Override
     protected void onPause() {
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
+        if (mPreparing && mPlayWhenPrepared) {
+            mPlayWhenPrepared = false;
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
+        } else if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
             mMediaPlayer.pause();
             setNewState(PlaybackStateCompat.STATE_PAUSED);
         }
@@ -172,6 +384,11 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
     private void setNewState(@PlaybackStateCompat.State int newPlayerState) {
         mState = newPlayerState;
 
+        mHandler.removeCallbacks(mIdleReleaseRunnable);
+        if (mState == PlaybackStateCompat.STATE_PAUSED && mIdleReleaseDelayMs > 0) {
+            mHandler.postDelayed(mIdleReleaseRunnable, mIdleReleaseDelayMs);
+        }
+
         // Whether playback goes to completion, or whether it is stopped, the
         // mCurrentMediaPlayedToCompletion is set to true.
         if (mState == PlaybackStateCompat.STATE_STOPPED) {
@@ -187,7 +404,8 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
                 mSeekWhileNotPlaying = -1;
             }
         } else {
-            reportPosition = mMediaPlayer == null ? 0 : mMediaPlayer.getCurrentPosition();
+            reportPosition = mMediaPlayer == null || mPreparing
+                    ? 0 : mMediaPlayer.getCurrentPosition();
         }
 
         final PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder();
@@ -196,6 +414,9 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
                               reportPosition,
                               1.0f,
                               SystemClock.elapsedRealtime());
+        if (mState == PlaybackStateCompat.STATE_ERROR) {
+            stateBuilder.setErrorMessage(mErrorMessage);
+        }
         mPlaybackInfoListener.onPlaybackStateChange(stateBuilder.build());
     }
 
@@ -236,7 +457,11 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
 
     @Override
     public void seekTo(long position) {
-        if (mMediaPlayer != null) {
+        if (mPreparing) {
+            // Applied once the player is prepared.
+            mSeekWhileNotPlaying = (int) position;
+            setNewState(mState);
+        } else if (mMediaPlayer != null) {
             if (!mMediaPlayer.isPlaying()) {
                 mSeekWhileNotPlaying = (int) position;
             }
@@ -245,6 +470,10 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
             // Set the state (to the current state) because the position changed and should
             // be reported to clients.
             setNewState(mState);
+        } else if (mReleasedWhileIdle) {
+            // Remember the position for when the player is prepared again.
+            mSeekWhileNotPlaying = (int) position;
+            setNewState(mState);
         }
     }
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.mediasession.service.contentcatalogs.AlbumArtProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the album art of a {@link MediaMetadataCompat} into an {@link ImageView} on a
+ * background thread.
+ * <p>
+ * The art is taken from the bitmap embedded in the metadata or, if there is none, decoded
+ * from its album art URI. Either way it is scaled to the size of the view and kept in a
+ * memory cache. Only the latest request is delivered, so skipping quickly through tracks
+ * never shows stale art or queues up decoding work on the UI thread.
+ */
+public class AlbumArtLoader {
+
+    private static final String TAG = AlbumArtLoader.class.getSimpleName();
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> mCache;
+
+    private Future<?> mPendingRequest;
+    private String mPendingKey;
+    private FrameMetricsCollector mFrameMetrics;
+
+    public AlbumArtLoader(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+        mCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 16)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Sets the collector to which the updates of the image views are reported, or null.
+     */
+    public void setFrameMetricsCollector(@Nullable FrameMetricsCollector frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    /**
+     * Shows the art of {@code metadata} in {@code imageView}, cancelling any earlier request.
+     */
+    public void load(@NonNull MediaMetadataCompat metadata, @NonNull final ImageView imageView) {
+        final int width = imageView.getWidth() > 0
+                ? imageView.getWidth()
+                : mContext.getResources().getDisplayMetrics().widthPixels;
+        final int height = imageView.getHeight() > 0 ? imageView.getHeight() : width;
+        final String key = metadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)
+                + '@' + width + 'x' + height;
+
+        cancel();
+
+        final Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            setImageBitmap(imageView, cached);
+            return;
+        }
+
+        setImageBitmap(imageView, null);
+        final Bitmap embedded = metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART);
+        String uri = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+        if (uri == null) {
+            uri = metadata.getString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI);
+        }
+        if (embedded == null && uri == null) {
+            return;
+        }
+
+        // Art served by the app's provider is scaled there, to the size of the view.
+        final String artUri = uri != null
+                ? AlbumArtProvider.withSize(Uri.parse(uri), Math.max(width, height)).toString()
+                : null;
+        mPendingKey = key;
+        mPendingRequest = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = embedded != null
+                        ? scale(embedded, width, height)
+                        : decode(Uri.parse(artUri), width, height);
+                if (bitmap == null || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCache.put(key, bitmap);
+                        if (key.equals(mPendingKey)) {
+                            mPendingKey = null;
+                            mPendingRequest = null;
+                            setImageBitmap(imageView, bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the pending request, if any.
+     */
+    public void cancel() {
+        mPendingKey = null;
+        if (mPendingRequest != null) {
+            mPendingRequest.cancel(true);
+            mPendingRequest = null;
+        }
+    }
+
+    /**
+     * Cancels pending work and stops the background thread. The loader can't be used after
+     * this.
+     */
+    public void release() {
+        cancel();
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+    }
+
+    private void setImageBitmap(@NonNull ImageView imageView, @Nullable Bitmap bitmap) {
+        if (mFrameMetrics != null) {
+            mFrameMetrics.beginUpdate(FrameMetricsCollector.SOURCE_ART);
+        }
+        imageView.setImageBitmap(bitmap);
+        if (mFrameMetrics != null) {
+            mFrameMetrics.endUpdate(FrameMetricsCollector.SOURCE_ART);
+        }
+    }
+
+    private static Bitmap scale(@NonNull Bitmap bitmap, int width, int height) {
+        if (bitmap.getWidth() <= width && bitmap.getHeight() <= height) {
+            return bitmap;
+        }
+        final float scale = Math.min(
+                (float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)),
+                true);
+    }
+
+    @Nullable
+    private Bitmap decode(@NonNull Uri uri, int width, int height) {
+        try {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(uri, options);
+
+            options.inSampleSize = 1;
+            while (options.outWidth / (options.inSampleSize * 2) >= width
+                    && options.outHeight / (options.inSampleSize * 2) >= height) {
+                options.inSampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            return decodeStream(uri, options);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "decode: Failed to load album art from " + uri, e);
+            return null;
+        }
+    }
+
+    private Bitmap decodeStream(@NonNull Uri uri, @NonNull BitmapFactory.Options options)
+            throws IOException {
+        final InputStream in = mContext.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("No content for " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.ui;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the frames of the playback screen, and attributes slow ones to the UI updates that
+ * happened just before them.
+ * <p>
+ * Each frame is observed with a {@link Choreographer} callback: a frame is slow when it starts
+ * more than one and a half frame periods after the previous one. The updates mark their work
+ * with {@link #beginUpdate(int)} and {@link #endUpdate(int)}, and a slow frame is attributed
+ * to every source that did work since the previous frame, since their layout and drawing
+ * happen in the slow frame itself. On API 24 and higher the rendered frames are also measured
+ * with {@link FrameMetrics}.
+ * <p>
+ * A session lasts from {@link #start(Activity)} to {@link #stop()}; its summary is logged and
+ * kept for {@link #dump(PrintWriter, String)}. Collection is opt-in: when the collector isn't
+ * started, marking updates costs a field check. Only used on the main thread.
+ */
+public class FrameMetricsCollector {
+
+    private static final String TAG = FrameMetricsCollector.class.getSimpleName();
+
+    public static final int SOURCE_METADATA = 0;
+    public static final int SOURCE_ART = 1;
+    public static final int SOURCE_SEEKBAR = 2;
+    private static final int SOURCE_COUNT = 3;
+    private static final String[] SOURCE_NAMES = {"metadata", "art", "seekbar"};
+
+    @IntDef({SOURCE_METADATA, SOURCE_ART, SOURCE_SEEKBAR})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Source {
+    }
+
+    // Number of session summaries kept for dump().
+    private static final int MAX_SESSIONS = 10;
+
+    /**
+     * Counters of one session. The FrameMetrics counters are updated on another thread.
+     */
+    private static class Session {
+        long mStartNanos;
+        long mDurationNanos;
+        int mFrames;
+        int mSlowFrames;
+        int mDroppedFrames;
+        int mUnattributedSlowFrames;
+        final int[] mSourceFrames = new int[SOURCE_COUNT];
+        final int[] mSourceSlowFrames = new int[SOURCE_COUNT];
+        final long[] mSourceWorkNanos = new long[SOURCE_COUNT];
+        final long[] mSourceMaxWorkNanos = new long[SOURCE_COUNT];
+        int mRenderedFrames;
+        int mSlowRenderedFrames;
+
+        synchronized void onFrameRendered(boolean slow) {
+            mRenderedFrames++;
+            if (slow) {
+                mSlowRenderedFrames++;
+            }
+        }
+
+        synchronized String summarize() {
+            final StringBuilder summary = new StringBuilder(String.format(Locale.US,
+                    "%.1fs frames=%d jank=%.1f%% dropped=%d unattributed=%d",
+                    mDurationNanos / 1e9, mFrames, percent(mSlowFrames, mFrames),
+                    mDroppedFrames, mUnattributedSlowFrames));
+            for (int source = 0; source < SOURCE_COUNT; source++) {
+                summary.append(String.format(Locale.US,
+                        " %s[frames=%d jank=%.1f%% work=%.1fms max=%.1fms]",
+                        SOURCE_NAMES[source],
+                        mSourceFrames[source],
+                        percent(mSourceSlowFrames[source], mSourceFrames[source]),
+                        mSourceWorkNanos[source] / 1e6,
+                        mSourceMaxWorkNanos[source] / 1e6));
+            }
+            if (mRenderedFrames > 0) {
+                summary.append(String.format(Locale.US, " rendered=%d renderJank=%.1f%%",
+                        mRenderedFrames, percent(mSlowRenderedFrames, mRenderedFrames)));
+            }
+            return summary.toString();
+        }
+
+        private static float percent(int count, int total) {
+            return total > 0 ? 100f * count / total : 0f;
+        }
+    }
+
+    private final List<String> mSessionSummaries = new ArrayList<>();
+    private final long[] mLastWorkNanos = new long[SOURCE_COUNT];
+    private final long[] mUpdateStartNanos = new long[SOURCE_COUNT];
+
+    private Session mSession;
+    private long mFramePeriodNanos;
+    private long mLastFrameNanos;
+    private Window mWindow;
+    private HandlerThread mMetricsThread;
+    private Object mFrameMetricsListener;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mSession == null) {
+                return;
+            }
+            onFrame(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    /**
+     * Starts a session for the window of {@code activity}.
+     */
+    public void start(@NonNull Activity activity) {
+        if (mSession != null) {
+            return;
+        }
+        mSession = new Session();
+        mSession.mStartNanos = System.nanoTime();
+        final float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        mFramePeriodNanos = (long) (1e9 / (refreshRate > 0 ? refreshRate : 60f));
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            startFrameMetrics(activity.getWindow());
+        }
+    }
+
+    /**
+     * Ends the session, and logs its summary.
+     */
+    public void stop() {
+        if (mSession == null) {
+            return;
+        }
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            stopFrameMetrics();
+        }
+
+        mSession.mDurationNanos = System.nanoTime() - mSession.mStartNanos;
+        final String summary = mSession.summarize();
+        mSession = null;
+        Log.i(TAG, "Session: " + summary);
+        if (mSessionSummaries.size() == MAX_SESSIONS) {
+            mSessionSummaries.remove(0);
+        }
+        mSessionSummaries.add(summary);
+    }
+
+    public boolean isStarted() {
+        return mSession != null;
+    }
+
+    public void beginUpdate(@Source int source) {
+        if (mSession != null) {
+            mUpdateStartNanos[source] = System.nanoTime();
+        }
+    }
+
+    public void endUpdate(@Source int source) {
+        if (mSession == null || mUpdateStartNanos[source] == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long work = now - mUpdateStartNanos[source];
+        mUpdateStartNanos[source] = 0;
+        mLastWorkNanos[source] = now;
+        mSession.mSourceWorkNanos[source] += work;
+        if (work > mSession.mSourceMaxWorkNanos[source]) {
+            mSession.mSourceMaxWorkNanos[source] = work;
+        }
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        final long previousFrameNanos = mLastFrameNanos;
+        mLastFrameNanos = frameTimeNanos;
+        if (previousFrameNanos == 0) {
+            return;
+        }
+
+        final Session session = mSession;
+        final long interval = frameTimeNanos - previousFrameNanos;
+        final boolean slow = interval * 2 > mFramePeriodNanos * 3;
+        session.mFrames++;
+        boolean attributed = false;
+        for (int source = 0; source < SOURCE_COUNT; source++) {
+            if (mLastWorkNanos[source] >= previousFrameNanos) {
+                session.mSourceFrames[source]++;
+                if (slow) {
+                    session.mSourceSlowFrames[source]++;
+                    attributed = true;
+                }
+            }
+        }
+        if (slow) {
+            session.mSlowFrames++;
+            session.mDroppedFrames += (int) (interval / mFramePeriodNanos) - 1;
+            if (!attributed) {
+                session.mUnattributedSlowFrames++;
+            }
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    private void startFrameMetrics(@NonNull Window window) {
+        final Session session = mSession;
+        final long framePeriodNanos = mFramePeriodNanos;
+        mMetricsThread = new HandlerThread("FrameMetrics");
+        mMetricsThread.start();
+        final Window.OnFrameMetricsAvailableListener listener =
+                new Window.OnFrameMetricsAvailableListener() {
+                    @Override
+                    public void onFrameMetricsAvailable(Window window,
+                                                       FrameMetrics frameMetrics,
+                                                       int dropCountSinceLastInvocation) {
+                        final long total = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+                        session.onFrameRendered(total > framePeriodNanos);
+                    }
+                };
+        window.addOnFrameMetricsAvailableListener(
+                listener, new Handler(mMetricsThread.getLooper()));
+        mWindow = window;
+        mFrameMetricsListener = listener;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    private void stopFrameMetrics() {
+        mWindow.removeOnFrameMetricsAvailableListener(
+                (Window.OnFrameMetricsAvailableListener) mFrameMetricsListener);
+        mMetricsThread.quitSafely();
+        mWindow = null;
+        mFrameMetricsListener = null;
+        mMetricsThread = null;
+    }
+
+    public void dump(@NonNull PrintWriter writer, @NonNull String prefix) {
+        for (String summary : mSessionSummaries) {
+            writer.println(prefix + summary);
+        }
+        if (mSession != null) {
+            mSession.mDurationNanos = System.nanoTime() - mSession.mStartNanos;
+            writer.println(prefix + "(current) " + mSession.summarize());
+        }
+    }
+}
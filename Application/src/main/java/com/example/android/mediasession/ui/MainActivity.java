@@ -16,9 +16,15 @@
 
 package com.example.android.mediasession.ui;
 
+import android.Manifest;
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
@@ -30,27 +36,53 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.example.android.mediasession.BuildConfig;
 import com.example.android.mediasession.R;
 import com.example.android.mediasession.client.MediaBrowserHelper;
+import com.example.android.mediasession.debug.MainThreadGuard;
 import com.example.android.mediasession.service.MusicService;
-import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity {
 
+    /**
+     * Boolean extra of the launch intent that enables frame metrics for the playback screen,
+     * e.g. {@code adb shell am start -n <component> --ez <extra> true}. Per-session jank is
+     * logged when the activity stops, and printed by {@code adb shell dumpsys activity}.
+     */
+    public static final String EXTRA_COLLECT_FRAME_METRICS =
+            "com.example.android.mediasession.extra.COLLECT_FRAME_METRICS";
+
+    // How long the connection to the service is kept after the activity stops.
+    private static final long CONNECTION_GRACE_PERIOD_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final int REQUEST_READ_EXTERNAL_STORAGE = 1;
+
     private ImageView mAlbumArt;
     private TextView mTitleTextView;
     private TextView mArtistTextView;
     private ImageView mMediaControlsImage;
     private MediaSeekBar mSeekBarAudio;
+    private AlbumArtLoader mAlbumArtLoader;
+    private final FrameMetricsCollector mFrameMetrics = new FrameMetricsCollector();
+    private boolean mCollectFrameMetrics;
 
-    private MediaBrowserHelper mMediaBrowserHelper;
+    private MediaBrowserConnection mMediaBrowserHelper;
+    private MediaBrowserListener mMediaBrowserListener;
 
     private boolean mIsPlaying;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        if (BuildConfig.DEBUG) {
+            MainThreadGuard.install();
+        }
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
@@ -59,19 +91,63 @@ public class MainActivity extends AppCompatActivity {
         mAlbumArt = findViewById(R.id.album_art);
         mMediaControlsImage = findViewById(R.id.media_controls);
         mSeekBarAudio = findViewById(R.id.seekbar_audio);
+        mAlbumArtLoader = new AlbumArtLoader(this);
+
+        mCollectFrameMetrics = getIntent().getBooleanExtra(EXTRA_COLLECT_FRAME_METRICS, false);
+        mAlbumArtLoader.setFrameMetricsCollector(mFrameMetrics);
+        mSeekBarAudio.setFrameMetricsCollector(mFrameMetrics);
 
         final ClickListener clickListener = new ClickListener();
         findViewById(R.id.button_previous).setOnClickListener(clickListener);
         findViewById(R.id.button_play).setOnClickListener(clickListener);
         findViewById(R.id.button_next).setOnClickListener(clickListener);
 
-        mMediaBrowserHelper = new MediaBrowserConnection(this);
-        mMediaBrowserHelper.registerCallback(new MediaBrowserListener());
+        // Reuse the connection of the previous instance across configuration changes.
+        mMediaBrowserHelper = (MediaBrowserConnection) getLastCustomNonConfigurationInstance();
+        if (mMediaBrowserHelper == null) {
+            mMediaBrowserHelper = new MediaBrowserConnection(this);
+            mMediaBrowserHelper.setFrameSynchronizedDispatch(true);
+            mMediaBrowserHelper.setRetainConnection(CONNECTION_GRACE_PERIOD_MS);
+        }
+        mMediaBrowserHelper.attach(this);
+        mMediaBrowserListener = new MediaBrowserListener();
+        mMediaBrowserHelper.registerCallback(mMediaBrowserListener);
+
+        // The service lists the device's music once it may read external storage. Asked
+        // once per launch, not again after a configuration change.
+        if (savedInstanceState == null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && ContextCompat.checkSelfPermission(this,
+                        Manifest.permission.READ_EXTERNAL_STORAGE)
+                        != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.READ_EXTERNAL_STORAGE},
+                    REQUEST_READ_EXTERNAL_STORAGE);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+                                           @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_READ_EXTERNAL_STORAGE
+                && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            mMediaBrowserHelper.reloadLibrary();
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mMediaBrowserHelper;
     }
 
     @Override
     public void onStart() {
         super.onStart();
+        if (mCollectFrameMetrics) {
+            mFrameMetrics.start(this);
+        }
         mMediaBrowserHelper.onStart();
     }
 
@@ -80,6 +156,26 @@ public class MainActivity extends AppCompatActivity {
         super.onStop();
         mSeekBarAudio.disconnectController();
         mMediaBrowserHelper.onStop();
+        mFrameMetrics.stop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mAlbumArtLoader.release();
+        mMediaBrowserHelper.unregisterCallback(mMediaBrowserListener);
+        mMediaBrowserHelper.detach();
+        if (!isChangingConfigurations()) {
+            mMediaBrowserHelper.release();
+        }
+    }
+
+    @Override
+    public void dump(String prefix, @Nullable FileDescriptor fd, PrintWriter writer,
+                     @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Frame metrics sessions:");
+        mFrameMetrics.dump(writer, prefix + "  ");
     }
 
     /**
@@ -112,15 +208,51 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Customize the connection to our {@link android.support.v4.media.MediaBrowserServiceCompat}
      * and implement our app specific desires.
+     * <p>
+     * This class is static because it is retained across configuration changes; the current
+     * activity is attached to it instead.
      */
-    private class MediaBrowserConnection extends MediaBrowserHelper {
+    private static class MediaBrowserConnection extends MediaBrowserHelper {
+        private MainActivity mActivity;
+        // Media IDs this connection added to the queue, or found queued. The catalog is
+        // delivered again each time it changes, and only new items are queued then.
+        private final Set<String> mQueuedMediaIds = new HashSet<>();
+        private boolean mChildrenLoaded;
+        // Whether the service should reload its library once connected.
+        private boolean mReloadLibraryWhenConnected;
+
         private MediaBrowserConnection(Context context) {
             super(context, MusicService.class);
         }
 
+        private void attach(MainActivity activity) {
+            mActivity = activity;
+        }
+
+        private void detach() {
+            mActivity = null;
+        }
+
+        /**
+         * Asks the service to read the library again, e.g. after storage access was granted.
+         */
+        private void reloadLibrary() {
+            if (isConnected()) {
+                getMediaController().sendCommand(MusicService.COMMAND_RELOAD_LIBRARY, null, null);
+            } else {
+                mReloadLibraryWhenConnected = true;
+            }
+        }
+
         @Override
         protected void onConnected(@NonNull MediaControllerCompat mediaController) {
-            mSeekBarAudio.setMediaController(mediaController);
+            if (mActivity != null) {
+                mActivity.mSeekBarAudio.setMediaController(mediaController);
+            }
+            if (mReloadLibraryWhenConnected) {
+                mReloadLibraryWhenConnected = false;
+                mediaController.sendCommand(MusicService.COMMAND_RELOAD_LIBRARY, null, null);
+            }
         }
 
         @Override
@@ -129,14 +261,31 @@ public class MainActivity extends AppCompatActivity {
             super.onChildrenLoaded(parentId, children);
 
             final MediaControllerCompat mediaController = getMediaController();
+            final boolean firstLoad = !mChildrenLoaded;
+            mChildrenLoaded = true;
+
+            if (firstLoad) {
+                // A queue restored by the service is kept as it is. Only a window of it is
+                // published, so it can't be compared with the catalog item by item.
+                final List<MediaSessionCompat.QueueItem> queue = mediaController.getQueue();
+                if (queue != null && !queue.isEmpty()) {
+                    for (MediaBrowserCompat.MediaItem mediaItem : children) {
+                        mQueuedMediaIds.add(mediaItem.getMediaId());
+                    }
+                }
+            }
 
             // Queue up all media items for this simple sample.
             for (final MediaBrowserCompat.MediaItem mediaItem : children) {
-                mediaController.addQueueItem(mediaItem.getDescription());
+                if (mQueuedMediaIds.add(mediaItem.getMediaId())) {
+                    mediaController.addQueueItem(mediaItem.getDescription());
+                }
             }
 
-            // Call prepare now so pressing play just works.
-            mediaController.getTransportControls().prepare();
+            if (firstLoad) {
+                // Call prepare now so pressing play just works.
+                mediaController.getTransportControls().prepare();
+            }
         }
     }
 
@@ -161,13 +310,13 @@ public class MainActivity extends AppCompatActivity {
             if (mediaMetadata == null) {
                 return;
             }
+            mFrameMetrics.beginUpdate(FrameMetricsCollector.SOURCE_METADATA);
             mTitleTextView.setText(
                     mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
             mArtistTextView.setText(
                     mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
-            mAlbumArt.setImageBitmap(MusicLibrary.getAlbumBitmap(
-                    MainActivity.this,
-                    mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)));
+            mFrameMetrics.endUpdate(FrameMetricsCollector.SOURCE_METADATA);
+            mAlbumArtLoader.load(mediaMetadata, mAlbumArt);
         }
 
         @Override
@@ -16,15 +16,16 @@
 
 package com.example.android.mediasession.ui;
 
-import android.animation.ValueAnimator;
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v7.widget.AppCompatSeekBar;
 import android.util.AttributeSet;
-import android.view.animation.LinearInterpolator;
+import android.view.Choreographer;
+import android.view.View;
 import android.widget.SeekBar;
 
 /**
@@ -53,7 +54,9 @@ public class MediaSeekBar extends AppCompatSeekBar {
             mIsTracking = false;
         }
     };
-    private ValueAnimator mProgressAnimator;
+    private final ProgressDriver mProgressDriver = new ProgressDriver();
+    private boolean mAttached;
+    private FrameMetricsCollector mFrameMetrics;
 
     public MediaSeekBar(Context context) {
         super(context);
@@ -80,6 +83,10 @@ public class MediaSeekBar extends AppCompatSeekBar {
         if (mediaController != null) {
             mControllerCallback = new ControllerCallback();
             mediaController.registerCallback(mControllerCallback);
+
+            // Start from the current state, which matters when the controller was retained.
+            mControllerCallback.onMetadataChanged(mediaController.getMetadata());
+            mControllerCallback.onPlaybackStateChanged(mediaController.getPlaybackState());
         } else if (mMediaController != null) {
             mMediaController.unregisterCallback(mControllerCallback);
             mControllerCallback = null;
@@ -87,17 +94,137 @@ public class MediaSeekBar extends AppCompatSeekBar {
         mMediaController = mediaController;
     }
 
+    /**
+     * Sets the collector to which the progress updates are reported, or null.
+     */
+    public void setFrameMetricsCollector(FrameMetricsCollector frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
     public void disconnectController() {
         if (mMediaController != null) {
             mMediaController.unregisterCallback(mControllerCallback);
             mControllerCallback = null;
             mMediaController = null;
         }
+        mProgressDriver.setPlaybackState(null);
     }
 
-    private class ControllerCallback
-            extends MediaControllerCompat.Callback
-            implements ValueAnimator.AnimatorUpdateListener {
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        mProgressDriver.update();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        mProgressDriver.update();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        mProgressDriver.update();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        mProgressDriver.update();
+    }
+
+    /**
+     * Moves the progress along with playback. Each frame, the position is extrapolated from
+     * the last {@link PlaybackStateCompat} (position, speed and update time), and the
+     * progress is only set when it moves the thumb by at least a pixel. Frames are only
+     * requested while playing, attached to a window and visible, and nothing is allocated
+     * per frame.
+     */
+    private class ProgressDriver implements Choreographer.FrameCallback {
+        private boolean mPlaying;
+        private long mPosition;
+        private long mUpdateTime;
+        private float mSpeed;
+        private boolean mFrameCallbackPosted;
+        private int mLastPixel = -1;
+
+        void setPlaybackState(PlaybackStateCompat state) {
+            mPlaying = state != null && state.getState() == PlaybackStateCompat.STATE_PLAYING;
+            mPosition = state != null ? state.getPosition() : 0;
+            mUpdateTime = state != null
+                    ? state.getLastPositionUpdateTime()
+                    : SystemClock.elapsedRealtime();
+            mSpeed = state != null ? state.getPlaybackSpeed() : 0f;
+            mLastPixel = -1;
+            if (!mIsTracking) {
+                setProgress(computePosition());
+            }
+            update();
+        }
+
+        void reset() {
+            mLastPixel = -1;
+        }
+
+        /**
+         * Starts or stops requesting frames, depending on playback and visibility.
+         */
+        void update() {
+            final boolean run = mPlaying
+                    && !mIsTracking
+                    && mAttached
+                    && getWindowVisibility() == VISIBLE
+                    && isShown();
+            if (run && !mFrameCallbackPosted) {
+                mFrameCallbackPosted = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            } else if (!run && mFrameCallbackPosted) {
+                mFrameCallbackPosted = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPosted = false;
+            if (mIsTracking) {
+                // The user is moving the thumb; a new playback state will follow the seek.
+                return;
+            }
+
+            final int position = computePosition();
+            final int trackWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+            final int max = getMax();
+            final int pixel = max > 0 ? (int) ((long) position * trackWidth / max) : 0;
+            if (pixel != mLastPixel) {
+                mLastPixel = pixel;
+                if (mFrameMetrics != null) {
+                    mFrameMetrics.beginUpdate(FrameMetricsCollector.SOURCE_SEEKBAR);
+                }
+                setProgress(position);
+                if (mFrameMetrics != null) {
+                    mFrameMetrics.endUpdate(FrameMetricsCollector.SOURCE_SEEKBAR);
+                }
+            }
+
+            if (position < max) {
+                update();
+            }
+        }
+
+        private int computePosition() {
+            long position = mPosition;
+            if (mPlaying) {
+                position += (long) ((SystemClock.elapsedRealtime() - mUpdateTime) * mSpeed);
+            }
+            return (int) Math.max(0, Math.min(position, getMax()));
+        }
+    }
+
+    private class ControllerCallback extends MediaControllerCompat.Callback {
 
         @Override
         public void onSessionDestroyed() {
@@ -107,30 +234,7 @@ public class MediaSeekBar extends AppCompatSeekBar {
         @Override
         public void onPlaybackStateChanged(PlaybackStateCompat state) {
             super.onPlaybackStateChanged(state);
-
-            // If there's an ongoing animation, stop it now.
-            if (mProgressAnimator != null) {
-                mProgressAnimator.cancel();
-                mProgressAnimator = null;
-            }
-
-            final int progress = state != null
-                    ? (int) state.getPosition()
-                    : 0;
-            setProgress(progress);
-
-            // If the media is playing then the seekbar should follow it, and the easiest
-            // way to do that is to create a ValueAnimator to update it so the bar reaches
-            // the end of the media the same time as playback gets there (or close enough).
-            if (state != null && state.getState() == PlaybackStateCompat.STATE_PLAYING) {
-                final int timeToEnd = (int) ((getMax() - progress) / state.getPlaybackSpeed());
-
-                mProgressAnimator = ValueAnimator.ofInt(progress, getMax())
-                        .setDuration(timeToEnd);
-                mProgressAnimator.setInterpolator(new LinearInterpolator());
-                mProgressAnimator.addUpdateListener(this);
-                mProgressAnimator.start();
-            }
+            mProgressDriver.setPlaybackState(state);
         }
 
         @Override
@@ -142,18 +246,7 @@ public class MediaSeekBar extends AppCompatSeekBar {
                     : 0;
             setProgress(0);
             setMax(max);
-        }
-
-        @Override
-        public void onAnimationUpdate(final ValueAnimator valueAnimator) {
-            // If the user is changing the slider, cancel the animation.
-            if (mIsTracking) {
-                valueAnimator.cancel();
-                return;
-            }
-
-            final int animatedIntValue = (int) valueAnimator.getAnimatedValue();
-            setProgress(animatedIntValue);
+            mProgressDriver.reset();
         }
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.persistence;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that records appended after a damaged tail survive the next restore, and that the
+ * journal matches the live queue after items were queued during a restore.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaybackJournalTest {
+
+    private static final String FILE_NAME = "test-playback.journal";
+
+    // Record types of the journal format.
+    private static final byte OP_ADD = 1;
+    private static final byte OP_INDEX = 3;
+
+    private Context mContext;
+    private File mFile;
+    private HandlerThread mCallbackThread;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFile = new File(mContext.getFilesDir(), FILE_NAME);
+        mFile.delete();
+        mCallbackThread = new HandlerThread("PlaybackJournalTest");
+        mCallbackThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        mCallbackThread.quitSafely();
+        mFile.delete();
+    }
+
+    @Test
+    public void appendAfterTornRecord() throws Exception {
+        final DataOutputStream out = writeValidRecords();
+        // An add record cut short by a crash: the string is shorter than its length prefix.
+        out.writeByte(OP_ADD);
+        out.writeShort(20);
+        out.writeBytes("torn");
+        out.close();
+
+        assertAppendedRecordsRestored();
+    }
+
+    @Test
+    public void appendAfterCorruptTail() throws Exception {
+        final DataOutputStream out = writeValidRecords();
+        out.writeByte(99);
+        out.writeLong(0);
+        out.close();
+
+        assertAppendedRecordsRestored();
+    }
+
+    @Test
+    public void addRacingRestoreIsRewritten() throws Exception {
+        writeValidRecords().close();
+
+        // A client queues the same items again before the saved queue is delivered, and the
+        // service keeps the client's queue.
+        final PlaybackJournal journal = new PlaybackJournal(mContext, FILE_NAME);
+        final PlaybackJournal.Snapshot snapshot = restore(journal, new Runnable() {
+            @Override
+            public void run() {
+                journal.recordAdd("a");
+                journal.recordAdd("b");
+            }
+        });
+        assertEquals(Arrays.asList("a", "b"), snapshot.mediaIds);
+        journal.rewriteIfChanged(Arrays.asList("a", "b"), 0, 0);
+        journal.flush();
+        journal.close();
+
+        final PlaybackJournal reopened = new PlaybackJournal(mContext, FILE_NAME);
+        final PlaybackJournal.Snapshot restored = restore(reopened);
+        reopened.close();
+        assertEquals(Arrays.asList("a", "b"), restored.mediaIds);
+        assertEquals(0, restored.queueIndex);
+    }
+
+    private DataOutputStream writeValidRecords() throws IOException {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeByte(OP_ADD);
+        out.writeUTF("a");
+        out.writeByte(OP_ADD);
+        out.writeUTF("b");
+        out.writeByte(OP_INDEX);
+        out.writeLong(1);
+        return out;
+    }
+
+    private void assertAppendedRecordsRestored() throws Exception {
+        final PlaybackJournal journal = new PlaybackJournal(mContext, FILE_NAME);
+        final PlaybackJournal.Snapshot damaged = restore(journal);
+        assertEquals(Arrays.asList("a", "b"), damaged.mediaIds);
+        assertEquals(1, damaged.queueIndex);
+
+        journal.recordAdd("c");
+        journal.recordPosition(1234);
+        journal.recordAdd("d");
+        journal.flush();
+        journal.close();
+
+        final PlaybackJournal reopened = new PlaybackJournal(mContext, FILE_NAME);
+        final PlaybackJournal.Snapshot restored = restore(reopened);
+        reopened.close();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), restored.mediaIds);
+        assertEquals(1, restored.queueIndex);
+        assertEquals(1234, restored.position);
+    }
+
+    private PlaybackJournal.Snapshot restore(@NonNull PlaybackJournal journal)
+            throws InterruptedException {
+        return restore(journal, null);
+    }
+
+    /**
+     * Restores {@code journal}, running {@code beforeRestored} on the callback thread after
+     * the restore started but before its snapshot is delivered.
+     */
+    private PlaybackJournal.Snapshot restore(@NonNull final PlaybackJournal journal,
+                                             @Nullable final Runnable beforeRestored)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final PlaybackJournal.Snapshot[] result = new PlaybackJournal.Snapshot[1];
+        // restore() answers on the calling thread, which needs a Looper.
+        new Handler(mCallbackThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                journal.restore(new PlaybackJournal.RestoreListener() {
+                    @Override
+                    public void onRestored(@NonNull PlaybackJournal.Snapshot snapshot) {
+                        result[0] = snapshot;
+                        latch.countDown();
+                    }
+                });
+                if (beforeRestored != null) {
+                    beforeRestored.run();
+                }
+            }
+        });
+        assertTrue("Journal not restored", latch.await(5, TimeUnit.SECONDS));
+        return result[0];
+    }
+}
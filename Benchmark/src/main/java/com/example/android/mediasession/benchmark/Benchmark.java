@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+/**
+ * An operation measured by {@link BenchmarkRunner}.
+ */
+abstract class Benchmark {
+
+    private final String mName;
+
+    Benchmark(String name) {
+        mName = name;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Prepares the benchmark. Not measured.
+     */
+    void setUp() throws Exception {
+    }
+
+    /**
+     * Runs the measured operation once.
+     */
+    abstract void run() throws Exception;
+
+    /**
+     * Undoes the effects of {@link #run()} that would make later runs slower, such as a
+     * growing queue. Called after each run; not timed, but its allocations are counted.
+     */
+    void afterRun() throws Exception {
+    }
+
+    /**
+     * Releases what {@link #setUp()} created. Not measured.
+     */
+    void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs every benchmark against synthetic catalogs of increasing size, and reports one line per
+ * benchmark and catalog size.
+ * <p>
+ * Pass {@code -e filter <prefix>} to only run the benchmarks whose name starts with the prefix,
+ * for example {@code catalog.} or {@code queue.}.
+ * <p>
+ * The synthetic catalog replaces the bundled one in the app's process until it is restarted.
+ */
+public class BenchmarkInstrumentation extends Instrumentation {
+
+    private static final String TAG = BenchmarkInstrumentation.class.getSimpleName();
+
+    private static final int[] CATALOG_SIZES = {1000, 10000, 100000};
+    private static final String ARGUMENT_FILTER = "filter";
+    private static final String ZONE_ID = "benchmark";
+
+    private String mFilter;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mFilter = arguments != null ? arguments.getString(ARGUMENT_FILTER) : null;
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        final Bundle results = new Bundle();
+        final BenchmarkRunner runner = new BenchmarkRunner();
+        try {
+            for (int size : CATALOG_SIZES) {
+                MusicLibrary.createSyntheticCatalog(size);
+                runAll(runner, CatalogBenchmarks.create(getTargetContext()), size, results);
+
+                if (isFiltered("queue.")) {
+                    continue;
+                }
+                final ZoneConnection zone = new ZoneConnection(this, ZONE_ID);
+                try {
+                    zone.connect();
+                    zone.fillQueue(MusicLibrary.getMediaItems());
+                    runAll(runner, QueueBenchmarks.create(zone), size, results);
+                } finally {
+                    zone.disconnect();
+                }
+            }
+            finish(Activity.RESULT_OK, results);
+        } catch (Exception e) {
+            Log.e(TAG, "Benchmark failed", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Benchmark failed: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    private void runAll(BenchmarkRunner runner, List<Benchmark> benchmarks, int catalogSize,
+                        Bundle results) throws Exception {
+        for (Benchmark benchmark : benchmarks) {
+            if (isFiltered(benchmark.getName())) {
+                continue;
+            }
+            final String key = benchmark.getName() + "[" + catalogSize + "]";
+            final BenchmarkResult result = runner.run(benchmark);
+            Log.i(TAG, key + ": " + result);
+            results.putString(key, result.toString());
+
+            final Bundle status = new Bundle();
+            status.putString(REPORT_KEY_STREAMRESULT, key + ": " + result + "\n");
+            sendStatus(0, status);
+        }
+    }
+
+    // Whether the filter argument excludes the benchmark, or group of benchmarks, named so.
+    private boolean isFiltered(String name) {
+        return mFilter != null && !name.startsWith(mFilter) && !mFilter.startsWith(name);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import java.util.Locale;
+
+/**
+ * Timing and allocations of the measured runs of a {@link Benchmark}.
+ */
+final class BenchmarkResult {
+
+    final int iterations;
+    final long medianNs;
+    final long p90Ns;
+    final long bytesPerRun;
+    // Bytes allocated per second of measured time.
+    final double allocationRate;
+    final int gcCount;
+
+    BenchmarkResult(int iterations, long medianNs, long p90Ns, long bytesPerRun,
+                    double allocationRate, int gcCount) {
+        this.iterations = iterations;
+        this.medianNs = medianNs;
+        this.p90Ns = p90Ns;
+        this.bytesPerRun = bytesPerRun;
+        this.allocationRate = allocationRate;
+        this.gcCount = gcCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "median=%.1fus p90=%.1fus alloc=%dB/op allocRate=%.1fMB/s gc=%d n=%d",
+                medianNs / 1000f, p90Ns / 1000f, bytesPerRun, allocationRate / (1024 * 1024),
+                gcCount, iterations);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.os.Build;
+import android.os.Debug;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link Benchmark}: warms it up, then repeats it for about a second and reports the
+ * distribution of run times and the bytes allocated per run.
+ * <p>
+ * Allocations are counted for the whole process, so they include work that a benchmark
+ * triggers on other threads, such as the session thread of a playback zone.
+ */
+class BenchmarkRunner {
+
+    private static final long WARMUP_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long TARGET_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_ITERATIONS = 5;
+    private static final int MAX_ITERATIONS = 100000;
+
+    private final long[] mTimes = new long[MAX_ITERATIONS];
+
+    BenchmarkResult run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            long start = System.nanoTime();
+            int warmups = 0;
+            while (warmups < MIN_ITERATIONS || System.nanoTime() - start < WARMUP_NS) {
+                benchmark.run();
+                benchmark.afterRun();
+                warmups++;
+            }
+            // Don't charge the garbage of setUp() and the warm up to the measured runs.
+            Runtime.getRuntime().gc();
+
+            startAllocationCounting();
+            final long allocatedBefore = getAllocatedBytes();
+            final long gcCountBefore = getGcCount();
+            int iterations = 0;
+            start = System.nanoTime();
+            while (iterations < MAX_ITERATIONS
+                    && (iterations < MIN_ITERATIONS || System.nanoTime() - start < TARGET_NS)) {
+                final long runStart = System.nanoTime();
+                benchmark.run();
+                mTimes[iterations++] = System.nanoTime() - runStart;
+                benchmark.afterRun();
+            }
+            final long elapsed = System.nanoTime() - start;
+            final long allocated = getAllocatedBytes() - allocatedBefore;
+            final int gcCount = (int) (getGcCount() - gcCountBefore);
+            stopAllocationCounting();
+
+            Arrays.sort(mTimes, 0, iterations);
+            return new BenchmarkResult(
+                    iterations,
+                    mTimes[iterations / 2],
+                    mTimes[iterations * 9 / 10],
+                    allocated / iterations,
+                    allocated * (double) TimeUnit.SECONDS.toNanos(1) / elapsed,
+                    gcCount);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    // Before Android M the runtime only counts allocations between start and stop calls.
+    @SuppressWarnings("deprecation")
+    static void startAllocationCounting() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Debug.resetGlobalAllocSize();
+            Debug.resetGlobalGcInvocationCount();
+            Debug.startAllocCounting();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static void stopAllocationCounting() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return parseStat(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+        }
+        return Debug.getGlobalAllocSize();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getGcCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return parseStat(Debug.getRuntimeStat("art.gc.gc-count"));
+        }
+        return Debug.getGlobalGcInvocationCount();
+    }
+
+    private static long parseStat(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.content.Context;
+import android.support.v4.media.MediaBrowserCompat;
+
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of {@link MusicLibrary} lookups and album art decoding, run against the current
+ * catalog.
+ */
+final class CatalogBenchmarks {
+
+    private CatalogBenchmarks() {
+    }
+
+    static List<Benchmark> create(final Context context) {
+        // Decode the art at the size the notification asks for.
+        final int artWidth = context.getResources()
+                .getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        final int artHeight = context.getResources()
+                .getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+
+        final List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new Benchmark("catalog.getMediaItems") {
+            @Override
+            void run() {
+                MusicLibrary.getMediaItems();
+            }
+        });
+        benchmarks.add(new MediaIdBenchmark("catalog.getDescription") {
+            @Override
+            void run(String mediaId) {
+                MusicLibrary.getDescription(mediaId);
+            }
+        });
+        benchmarks.add(new MediaIdBenchmark("catalog.getMetadata") {
+            @Override
+            void run(String mediaId) {
+                MusicLibrary.getMetadata(context, mediaId);
+            }
+        });
+        benchmarks.add(new MediaIdBenchmark("art.getAlbumBitmap") {
+            @Override
+            void run(String mediaId) {
+                MusicLibrary.getAlbumBitmap(context, mediaId, artWidth, artHeight);
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * A benchmark that looks up a different item of the catalog on every run.
+     */
+    private abstract static class MediaIdBenchmark extends Benchmark {
+
+        private String[] mMediaIds;
+        private int mNext;
+
+        MediaIdBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        void setUp() {
+            final List<MediaBrowserCompat.MediaItem> items = MusicLibrary.getMediaItems();
+            mMediaIds = new String[items.size()];
+            for (int i = 0; i < mMediaIds.length; i++) {
+                mMediaIds[i] = items.get(i).getMediaId();
+            }
+            mNext = 0;
+        }
+
+        @Override
+        final void run() {
+            run(mMediaIds[mNext]);
+            mNext = (mNext + 1) % mMediaIds.length;
+        }
+
+        abstract void run(String mediaId);
+    }
+}
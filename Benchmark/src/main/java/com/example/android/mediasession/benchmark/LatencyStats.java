@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latencies and allocations recorded for one kind of command.
+ */
+final class LatencyStats {
+
+    private long[] mLatenciesNs = new long[64];
+    private int mCount;
+    private long mAllocatedBytes;
+
+    void add(long latencyNs, long allocatedBytes) {
+        if (mCount == mLatenciesNs.length) {
+            mLatenciesNs = Arrays.copyOf(mLatenciesNs, mCount * 2);
+        }
+        mLatenciesNs[mCount++] = latencyNs;
+        mAllocatedBytes += allocatedBytes;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the latency below which {@code percentile} percent of the commands completed.
+     */
+    long getPercentileNs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(mLatenciesNs, mCount);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100 * mCount) - 1;
+        return sorted[Math.max(0, Math.min(mCount - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "n=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms alloc=%dB/op",
+                mCount,
+                getPercentileNs(50) / 1e6,
+                getPercentileNs(90) / 1e6,
+                getPercentileNs(99) / 1e6,
+                getPercentileNs(100) / 1e6,
+                mCount > 0 ? mAllocatedBytes / mCount : 0);
+    }
+}
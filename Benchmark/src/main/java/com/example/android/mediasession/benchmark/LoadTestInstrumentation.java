@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.debug.MainThreadGuard;
+import com.example.android.mediasession.service.MusicService;
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a storm of transport commands, queue edits and browse subscriptions against a
+ * playback zone of {@link MusicService}, whose player is a {@link VirtualPlayerAdapter}. This
+ * drives the session callback, the player state handling and the notification together, with
+ * no audio and no real waiting. Reports latency percentiles and allocations per command.
+ * <p>
+ * Each command is timed until the zone's thread and then the main thread have handled it, so
+ * a stall on either shows up in the latencies.
+ * <p>
+ * Arguments, all optional:
+ * <ul>
+ * <li>{@code count}: number of commands, 5000 by default.</li>
+ * <li>{@code script}: comma separated commands to replay in a loop, for example
+ * {@code next,next,seek,pause,play}. Without a script, commands are picked at random.</li>
+ * <li>{@code seed}: seed of the random commands and arguments, to reproduce a run.</li>
+ * <li>{@code catalog}: number of tracks of the synthetic catalog, which is also queued.</li>
+ * <li>{@code mainThreadThresholdMs}: how long a message of the main looper may run, 100ms by
+ * default. The run fails if one runs longer, and the report lists its call site.</li>
+ * </ul>
+ * The service must run in the app's process, i.e. be built without a dedicated playback
+ * process, so that the virtual player can be installed.
+ */
+public class LoadTestInstrumentation extends Instrumentation {
+
+    private static final String TAG = LoadTestInstrumentation.class.getSimpleName();
+
+    private static final String ZONE_ID = "loadtest";
+    private static final int DEFAULT_COMMAND_COUNT = 5000;
+    private static final int DEFAULT_CATALOG_SIZE = 1000;
+    private static final int PAGE_SIZE = 100;
+    private static final long MAX_SEEK_MS = TimeUnit.MINUTES.toMillis(4);
+    private static final long MAX_ADVANCE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    // Commands picked at random, each listed as often as it should be picked.
+    private static final String[] RANDOM_COMMANDS = {
+            "next", "next", "next", "next", "previous", "previous",
+            "seek", "seek", "seek", "seek",
+            "play", "play", "pause", "pause",
+            "add", "add", "remove",
+            "browse", "page", "advance"
+    };
+
+    private Bundle mArguments;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = arguments != null ? arguments : new Bundle();
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        final Bundle results = new Bundle();
+        final VirtualClock clock = new VirtualClock();
+        final VirtualPlayerAdapter.Factory playerFactory = new VirtualPlayerAdapter.Factory(clock);
+        final ZoneConnection zone = new ZoneConnection(this, ZONE_ID);
+        try {
+            final int count = getIntArgument("count", DEFAULT_COMMAND_COUNT);
+            final long seed = mArguments.containsKey("seed")
+                    ? Long.parseLong(mArguments.getString("seed"))
+                    : System.nanoTime();
+            final String script = mArguments.getString("script");
+            final String[] commands = script != null ? script.split(",") : RANDOM_COMMANDS;
+            Log.i(TAG, "Running " + count + " commands, seed=" + seed);
+
+            MusicLibrary.createSyntheticCatalog(getIntArgument("catalog", DEFAULT_CATALOG_SIZE));
+            MusicService.setPlayerFactory(playerFactory);
+            zone.connect();
+            if (playerFactory.getCreatedCount() == 0) {
+                throw new IllegalStateException("MusicService runs in another process");
+            }
+            final List<MediaBrowserCompat.MediaItem> items = MusicLibrary.getMediaItems();
+            zone.fillQueue(items);
+
+            MainThreadGuard.setThresholdMs(getIntArgument("mainThreadThresholdMs",
+                    (int) MainThreadGuard.DEFAULT_THRESHOLD_MS));
+            MainThreadGuard.install();
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    // Drops violations of the setup, e.g. building the synthetic catalog.
+                    MainThreadGuard.clearViolations();
+                }
+            });
+
+            final Random random = new Random(seed);
+            final Map<String, LatencyStats> stats = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                final String command = script != null
+                        ? commands[i % commands.length].trim()
+                        : commands[random.nextInt(commands.length)];
+                LatencyStats commandStats = stats.get(command);
+                if (commandStats == null) {
+                    commandStats = new LatencyStats();
+                    stats.put(command, commandStats);
+                }
+
+                BenchmarkRunner.startAllocationCounting();
+                final long allocatedBefore = BenchmarkRunner.getAllocatedBytes();
+                final long start = System.nanoTime();
+                run(command, zone, clock, items, random);
+                final long latency = System.nanoTime() - start;
+                final long allocated = BenchmarkRunner.getAllocatedBytes() - allocatedBefore;
+                BenchmarkRunner.stopAllocationCounting();
+                commandStats.add(latency, allocated);
+            }
+
+            for (Map.Entry<String, LatencyStats> entry : stats.entrySet()) {
+                report(results, entry.getKey(), entry.getValue().toString());
+            }
+            zone.awaitIdle();
+            MainThreadGuard.assertNoViolations();
+            finish(Activity.RESULT_OK, results);
+        } catch (Exception | AssertionError e) {
+            Log.e(TAG, "Load test failed", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Load test failed: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        } finally {
+            MusicService.setPlayerFactory(null);
+            zone.disconnect();
+        }
+    }
+
+    private static void run(String command, ZoneConnection zone, VirtualClock clock,
+                            List<MediaBrowserCompat.MediaItem> items, Random random)
+            throws InterruptedException {
+        final MediaControllerCompat.TransportControls controls =
+                zone.getController().getTransportControls();
+        switch (command) {
+            case "play":
+                controls.play();
+                break;
+            case "pause":
+                controls.pause();
+                break;
+            case "next":
+                controls.skipToNext();
+                break;
+            case "previous":
+                controls.skipToPrevious();
+                break;
+            case "seek":
+                controls.seekTo((long) (random.nextDouble() * MAX_SEEK_MS));
+                break;
+            case "add":
+                zone.getController().addQueueItem(
+                        items.get(random.nextInt(items.size())).getDescription());
+                break;
+            case "remove":
+                zone.getController().removeQueueItem(
+                        items.get(random.nextInt(items.size())).getDescription());
+                break;
+            case "browse":
+                zone.loadChildren(MusicLibrary.getRoot(), null);
+                return;
+            case "page":
+                final Bundle options = new Bundle();
+                options.putInt(MediaBrowserCompat.EXTRA_PAGE,
+                        random.nextInt(Math.max(1, items.size() / PAGE_SIZE)));
+                options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+                zone.loadChildren(zone.getQueueMediaId(), options);
+                return;
+            case "advance":
+                // Lets the virtual player reach the end of the track now and then.
+                clock.advance((long) (random.nextDouble() * MAX_ADVANCE_MS));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+        zone.awaitIdle();
+    }
+
+    private int getIntArgument(String name, int defaultValue) {
+        final String value = mArguments.getString(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private void report(Bundle results, String key, String value) {
+        Log.i(TAG, key + ": " + value);
+        results.putString(key, value);
+
+        final Bundle status = new Bundle();
+        status.putString(REPORT_KEY_STREAMRESULT, key + ": " + value + "\n");
+        sendStatus(0, status);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the queue handling of a {@link ZoneConnection}'s session, whose queue holds the
+ * whole catalog. Each run is measured from sending the command until the session has handled
+ * it, so it includes the Binder round trips.
+ */
+final class QueueBenchmarks {
+
+    // Size of the queue pages requested through the browser.
+    private static final int PAGE_SIZE = 100;
+
+    private QueueBenchmarks() {
+    }
+
+    static List<Benchmark> create(final ZoneConnection zone) {
+        final List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new Benchmark("queue.addQueueItem") {
+            private List<MediaBrowserCompat.MediaItem> mItems;
+            private int mNext;
+
+            @Override
+            void setUp() {
+                mItems = MusicLibrary.getMediaItems();
+                mNext = 0;
+            }
+
+            @Override
+            void run() throws InterruptedException {
+                zone.getController().addQueueItem(mItems.get(mNext).getDescription());
+                zone.awaitIdle();
+            }
+
+            @Override
+            void afterRun() throws InterruptedException {
+                // Keeps the queue at the size of the catalog. The first item with the media
+                // ID is removed, so the queue is back in order after a pass over the catalog.
+                zone.getController().removeQueueItem(mItems.get(mNext).getDescription());
+                mNext = (mNext + 1) % mItems.size();
+                zone.awaitIdle();
+            }
+        });
+        benchmarks.add(new Benchmark("queue.loadPage") {
+            private int mPageCount;
+            private int mNextPage;
+
+            @Override
+            void setUp() {
+                mPageCount = Math.max(1, MusicLibrary.getMediaItems().size() / PAGE_SIZE);
+                mNextPage = 0;
+            }
+
+            @Override
+            void run() throws InterruptedException {
+                final Bundle options = new Bundle();
+                options.putInt(MediaBrowserCompat.EXTRA_PAGE, mNextPage);
+                options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+                zone.loadChildren(zone.getQueueMediaId(), options);
+                mNextPage = (mNextPage + 1) % mPageCount;
+            }
+        });
+        return benchmarks;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A clock that only moves when told to, so that load tests can play through hours of audio in
+ * no time.
+ */
+class VirtualClock {
+
+    /**
+     * Notified, on the thread that advanced the clock, when the time changed.
+     */
+    interface Listener {
+        void onTimeChanged(long nowMs);
+    }
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile long mNowMs;
+
+    long now() {
+        return mNowMs;
+    }
+
+    void advance(long deltaMs) {
+        mNowMs += deltaMs;
+        for (Listener listener : mListeners) {
+            listener.onTimeChanged(mNowMs);
+        }
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.example.android.mediasession.service.MusicService;
+import com.example.android.mediasession.service.PlaybackInfoListener;
+import com.example.android.mediasession.service.PlayerAdapter;
+
+/**
+ * A {@link PlayerAdapter} that plays nothing. Its position follows a {@link VirtualClock}, and
+ * it reports completion when the clock passes the end of the track, like
+ * {@link com.example.android.mediasession.service.players.MediaPlayerAdapter} does.
+ * <p>
+ * Lives on the thread of the zone that created it; the clock may be advanced from any thread.
+ * Players stay registered with their clock, so use a new clock for each run.
+ */
+class VirtualPlayerAdapter extends PlayerAdapter implements VirtualClock.Listener {
+
+    /**
+     * Creates virtual players for every zone created while it is installed.
+     */
+    static class Factory implements MusicService.PlayerFactory {
+        private final VirtualClock mClock;
+        private volatile int mCreatedCount;
+
+        Factory(VirtualClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public PlayerAdapter createPlayer(Context context, PlaybackInfoListener listener) {
+            mCreatedCount++;
+            return new VirtualPlayerAdapter(context, listener, mClock);
+        }
+
+        int getCreatedCount() {
+            return mCreatedCount;
+        }
+    }
+
+    private final PlaybackInfoListener mPlaybackInfoListener;
+    private final VirtualClock mClock;
+    private final Handler mHandler = new Handler();
+
+    private MediaMetadataCompat mCurrentMedia;
+    private int mState = PlaybackStateCompat.STATE_NONE;
+    // Position at mPositionTimeMs on the virtual clock.
+    private long mPositionMs;
+    private long mPositionTimeMs;
+
+    private final Runnable mCheckCompletionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long duration = getDuration();
+            if (mState == PlaybackStateCompat.STATE_PLAYING
+                    && duration > 0 && getPosition() >= duration) {
+                mPositionMs = duration;
+                mPositionTimeMs = mClock.now();
+                mPlaybackInfoListener.onPlaybackCompleted();
+                setNewState(PlaybackStateCompat.STATE_PAUSED);
+            }
+        }
+    };
+
+    VirtualPlayerAdapter(Context context, PlaybackInfoListener listener, VirtualClock clock) {
+        super(context);
+        mPlaybackInfoListener = listener;
+        mClock = clock;
+        mClock.addListener(this);
+    }
+
+    @Override
+    public void onTimeChanged(long nowMs) {
+        mHandler.post(mCheckCompletionRunnable);
+    }
+
+    @Override
+    public void playFromMedia(MediaMetadataCompat metadata) {
+        playFromMedia(metadata, 0);
+    }
+
+    @Override
+    public void playFromMedia(MediaMetadataCompat metadata, long startPosition) {
+        mCurrentMedia = metadata;
+        mState = PlaybackStateCompat.STATE_PAUSED;
+        mPositionMs = startPosition;
+        mPositionTimeMs = mClock.now();
+        play();
+    }
+
+    @Override
+    public MediaMetadataCompat getCurrentMedia() {
+        return mCurrentMedia;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mState == PlaybackStateCompat.STATE_PLAYING;
+    }
+
+    @Override
+    protected void onPlay() {
+        if (mCurrentMedia != null && !isPlaying()) {
+            mPositionTimeMs = mClock.now();
+            setNewState(PlaybackStateCompat.STATE_PLAYING);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        if (isPlaying()) {
+            mPositionMs = getPosition();
+            mPositionTimeMs = mClock.now();
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        mPositionMs = 0;
+        mPositionTimeMs = mClock.now();
+        setNewState(PlaybackStateCompat.STATE_STOPPED);
+    }
+
+    @Override
+    public void seekTo(long position) {
+        mPositionMs = position;
+        mPositionTimeMs = mClock.now();
+        setNewState(mState);
+    }
+
+    @Override
+    public void setVolume(float volume) {
+    }
+
+    private long getPosition() {
+        return isPlaying() ? mPositionMs + mClock.now() - mPositionTimeMs : mPositionMs;
+    }
+
+    private long getDuration() {
+        return mCurrentMedia != null
+                ? mCurrentMedia.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)
+                : 0;
+    }
+
+    private void setNewState(@PlaybackStateCompat.State int newState) {
+        mState = newState;
+        // The session extrapolates the position with the real clock, so report the virtual
+        // position as of now.
+        mPlaybackInfoListener.onPlaybackStateChange(new PlaybackStateCompat.Builder()
+                .setActions(PlaybackStateCompat.ACTION_PLAY
+                        | PlaybackStateCompat.ACTION_PAUSE
+                        | PlaybackStateCompat.ACTION_STOP
+                        | PlaybackStateCompat.ACTION_SEEK_TO
+                        | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+                        | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS)
+                .setState(mState, getPosition(), isPlaying() ? 1.0f : 0f,
+                        SystemClock.elapsedRealtime())
+                .build());
+    }
+}
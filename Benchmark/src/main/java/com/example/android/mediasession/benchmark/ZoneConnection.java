@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.mediasession.benchmark;
+
+import android.app.Instrumentation;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import com.example.android.mediasession.service.MusicService;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to a dedicated playback zone of {@link MusicService}, so that benchmarks can
+ * fill and drive a session without touching the default session or its journal.
+ * <p>
+ * All methods block, and must be called from the instrumentation thread.
+ */
+class ZoneConnection {
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final Instrumentation mInstrumentation;
+    private final Context mContext;
+    private final String mZoneId;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private MediaBrowserCompat mMediaBrowser;
+    private MediaControllerCompat mDefaultController;
+    private MediaControllerCompat mController;
+    // Allows sending zone commands, from the extras of the browser root.
+    private String mZoneKey;
+
+    ZoneConnection(Instrumentation instrumentation, String zoneId) {
+        mInstrumentation = instrumentation;
+        mContext = instrumentation.getTargetContext();
+        mZoneId = zoneId;
+    }
+
+    /**
+     * Connects to the service and adds the zone, starting from an empty queue.
+     */
+    void connect() throws InterruptedException {
+        deleteJournal();
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mMediaBrowser = new MediaBrowserCompat(
+                        mContext,
+                        new ComponentName(mContext, MusicService.class),
+                        new MediaBrowserCompat.ConnectionCallback() {
+                            @Override
+                            public void onConnected() {
+                                connected.countDown();
+                            }
+                        },
+                        null);
+                mMediaBrowser.connect();
+            }
+        });
+        await(connected, "connect to MusicService");
+        final Bundle rootExtras = mMediaBrowser.getExtras();
+        mZoneKey = rootExtras != null ? rootExtras.getString(MusicService.EXTRA_ZONE_KEY) : null;
+        mDefaultController = createController(mMediaBrowser.getSessionToken());
+
+        final int[] resultCode = new int[1];
+        final Bundle[] reply = new Bundle[1];
+        final CountDownLatch added = new CountDownLatch(1);
+        mDefaultController.sendCommand(MusicService.COMMAND_ADD_ZONE, getZoneExtras(),
+                new ResultReceiver(mMainHandler) {
+                    @Override
+                    protected void onReceiveResult(int code, Bundle resultData) {
+                        resultCode[0] = code;
+                        reply[0] = resultData;
+                        added.countDown();
+                    }
+                });
+        await(added, "add zone " + mZoneId);
+        if (resultCode[0] != 1) {
+            throw new IllegalStateException("Could not add zone " + mZoneId
+                    + (resultCode[0] == 0 ? ": it already exists" : ": refused"));
+        }
+        reply[0].setClassLoader(MediaSessionCompat.Token.class.getClassLoader());
+        mController = createController(
+                (MediaSessionCompat.Token) reply[0].getParcelable(
+                        MusicService.EXTRA_SESSION_TOKEN));
+    }
+
+    /**
+     * Removes the zone and disconnects from the service.
+     */
+    void disconnect() {
+        if (mDefaultController != null) {
+            mDefaultController.sendCommand(
+                    MusicService.COMMAND_REMOVE_ZONE, getZoneExtras(), null);
+        }
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mMediaBrowser != null) {
+                    mMediaBrowser.disconnect();
+                }
+            }
+        });
+        mController = null;
+        mDefaultController = null;
+    }
+
+    MediaControllerCompat getController() {
+        return mController;
+    }
+
+    MediaBrowserCompat getMediaBrowser() {
+        return mMediaBrowser;
+    }
+
+    String getQueueMediaId() {
+        return MusicService.QUEUE_MEDIA_ID + "/" + mZoneId;
+    }
+
+    /**
+     * Appends {@code items} to the zone's queue and waits until they are all queued.
+     */
+    void fillQueue(List<MediaBrowserCompat.MediaItem> items) throws InterruptedException {
+        for (MediaBrowserCompat.MediaItem item : items) {
+            final MediaDescriptionCompat description = item.getDescription();
+            mController.addQueueItem(description);
+        }
+        awaitIdle();
+    }
+
+    /**
+     * Waits until the zone's session has handled every command sent before this call.
+     * <p>
+     * Commands reach the session's thread in order, so the reply to a ping acts as a barrier.
+     */
+    void awaitIdle() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        mController.sendCommand(MusicService.COMMAND_PING, null,
+                new ResultReceiver(mMainHandler) {
+                    @Override
+                    protected void onReceiveResult(int resultCode, Bundle resultData) {
+                        idle.countDown();
+                    }
+                });
+        await(idle, "zone " + mZoneId + " to become idle");
+    }
+
+    /**
+     * Subscribes to {@code parentId} and waits for its children, then unsubscribes.
+     */
+    void loadChildren(final String parentId, final Bundle options)
+            throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final MediaBrowserCompat.SubscriptionCallback callback =
+                new MediaBrowserCompat.SubscriptionCallback() {
+                    @Override
+                    public void onChildrenLoaded(
+                            @NonNull String parentId,
+                            @NonNull List<MediaBrowserCompat.MediaItem> children) {
+                        loaded.countDown();
+                    }
+
+                    @Override
+                    public void onChildrenLoaded(
+                            @NonNull String parentId,
+                            @NonNull List<MediaBrowserCompat.MediaItem> children,
+                            @NonNull Bundle options) {
+                        loaded.countDown();
+                    }
+                };
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (options != null) {
+                    mMediaBrowser.subscribe(parentId, options, callback);
+                } else {
+                    mMediaBrowser.subscribe(parentId, callback);
+                }
+            }
+        });
+        await(loaded, "load the children of " + parentId);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mMediaBrowser.unsubscribe(parentId, callback);
+            }
+        });
+    }
+
+    private MediaControllerCompat createController(final MediaSessionCompat.Token token) {
+        // The controller needs a Looper to receive its extra binder.
+        final MediaControllerCompat[] controller = new MediaControllerCompat[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    controller[0] = new MediaControllerCompat(mContext, token);
+                } catch (RemoteException e) {
+                    throw new IllegalStateException("Could not create a controller", e);
+                }
+            }
+        });
+        return controller[0];
+    }
+
+    private Bundle getZoneExtras() {
+        final Bundle extras = new Bundle();
+        extras.putString(MusicService.EXTRA_ZONE_ID, mZoneId);
+        extras.putString(MusicService.EXTRA_ZONE_KEY, mZoneKey);
+        return extras;
+    }
+
+    private void deleteJournal() {
+        final File journal = new File(mContext.getFilesDir(), "playback-" + mZoneId + ".journal");
+        if (journal.exists() && !journal.delete()) {
+            throw new IllegalStateException("Could not delete " + journal);
+        }
+    }
+
+    static void await(CountDownLatch latch, String what) throws InterruptedException {
+        if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out waiting to " + what);
+        }
+    }
+}